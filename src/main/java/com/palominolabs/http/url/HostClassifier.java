@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2012 Palomino Labs, Inc.
+ */
+
+package com.palominolabs.http.url;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Single pass, non-allocating recognition of the RFC 3986 S3.2.2 host forms that must not be percent-encoded.
+ */
+@ThreadSafe
+final class HostClassifier {
+
+    private HostClassifier() {
+    }
+
+    /**
+     * @param host host string
+     * @return true if host is an IPv4 dotted quad or a bracketed IPv6 literal (IPvFuture is not recognized), false if
+     * it should be treated as a reg-name
+     */
+    static boolean isIpLiteral(@Nonnull CharSequence host) {
+        return isIpv4Address(host, 0, host.length()) || isIpv6Literal(host);
+    }
+
+    /**
+     * @param host host string
+     * @return true if host is '[' IPv6address ']'
+     */
+    static boolean isIpv6Literal(@Nonnull CharSequence host) {
+        int length = host.length();
+        return length >= 2 && host.charAt(0) == '[' && host.charAt(length - 1) == ']' &&
+            isIpv6Address(host, 1, length - 1);
+    }
+
+    /**
+     * @param s     chars to check
+     * @param start start index (inclusive)
+     * @param end   end index (exclusive)
+     * @return true if the region is an RFC 3986 IPv4address: four dec-octets without leading zeros
+     */
+    static boolean isIpv4Address(@Nonnull CharSequence s, int start, int end) {
+        int octets = 0;
+        int i = start;
+        while (true) {
+            int octetStart = i;
+            int value = 0;
+            while (i < end && i - octetStart < 3 && isDigit(s.charAt(i))) {
+                value = value * 10 + (s.charAt(i) - '0');
+                i++;
+            }
+
+            int digits = i - octetStart;
+            if (digits == 0 || value > 255 || (digits > 1 && s.charAt(octetStart) == '0')) {
+                return false;
+            }
+
+            octets++;
+            if (i == end) {
+                return octets == 4;
+            }
+            if (octets == 4 || s.charAt(i) != '.') {
+                return false;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * @param s     chars to check
+     * @param start start index (inclusive)
+     * @param end   end index (exclusive)
+     * @return true if the region is an RFC 3986 IPv6address, in full, compressed ("::") or embedded IPv4 form
+     */
+    static boolean isIpv6Address(@Nonnull CharSequence s, int start, int end) {
+        int groups = 0;
+        boolean compressed = false;
+        int i = start;
+
+        if (end - start >= 2 && s.charAt(i) == ':' && s.charAt(i + 1) == ':') {
+            compressed = true;
+            i += 2;
+        }
+
+        while (i < end) {
+            int groupStart = i;
+            while (i < end && isHexDigit(s.charAt(i))) {
+                i++;
+            }
+
+            if (i < end && s.charAt(i) == '.') {
+                // an embedded IPv4 address has to be the last thing, and takes up two groups
+                if (!isIpv4Address(s, groupStart, end)) {
+                    return false;
+                }
+                groups += 2;
+                break;
+            }
+
+            int digits = i - groupStart;
+            if (digits == 0 || digits > 4) {
+                return false;
+            }
+            groups++;
+
+            if (i == end) {
+                break;
+            }
+            if (s.charAt(i) != ':') {
+                return false;
+            }
+            i++;
+
+            if (i < end && s.charAt(i) == ':') {
+                if (compressed) {
+                    // only one "::" allowed
+                    return false;
+                }
+                compressed = true;
+                i++;
+            } else if (i == end) {
+                // single trailing ':'
+                return false;
+            }
+        }
+
+        // "::" stands for at least one group of zeros
+        return compressed ? groups <= 7 : groups == 8;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isHexDigit(char c) {
+        return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+}
@@ -2,13 +2,17 @@ package com.palominolabs.http.url;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.MalformedInputException;
 import java.nio.charset.UnmappableCharacterException;
+import java.util.Arrays;
 
+import static com.google.common.base.Charsets.UTF_8;
 import static java.nio.charset.CoderResult.OVERFLOW;
 import static java.nio.charset.CoderResult.UNDERFLOW;
 
@@ -18,6 +22,22 @@ import static java.nio.charset.CoderResult.UNDERFLOW;
 @NotThreadSafe
 public final class PercentDecoder {
 
+    /**
+     * Value of each hex digit char, or -1 for chars that aren't hex digits.
+     */
+    private static final byte[] HEX_VALUES = new byte[256];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
     /**
      * bytes represented by the current sequence of %-triples. Resized as needed.
      */
@@ -28,6 +48,10 @@ public final class PercentDecoder {
      */
     private final CharBuffer decodedCharBuf;
     private final CharsetDecoder decoder;
+    /**
+     * true if the decoder's charset is UTF-8, which is decoded directly rather than with the decoder
+     */
+    private final boolean utf8;
 
     /**
      * The decoded string for the current input
@@ -54,6 +78,7 @@ public final class PercentDecoder {
         encodedBuf = ByteBuffer.allocate(initialEncodedByteBufSize);
         decodedCharBuf = CharBuffer.allocate(decodedCharBufSize);
         decoder = charsetDecoder;
+        utf8 = charsetDecoder.charset().equals(UTF_8);
     }
 
     /**
@@ -66,37 +91,153 @@ public final class PercentDecoder {
      */
     @Nonnull
     public String decode(@Nonnull CharSequence input) throws MalformedInputException, UnmappableCharacterException {
+        return decode(input, 0, input.length());
+    }
+
+    /**
+     * Decode part of a larger sequence, e.g. one query param in a whole url, without first extracting it.
+     *
+     * @param input Input with %-encoded representation of characters in this instance's configured character set, e.g.
+     *              "%20" for a space character
+     * @param start index of the first char to decode
+     * @param end   index after the last char to decode
+     * @return Corresponding string with %-encoded data in input[start, end) decoded and converted to their
+     * corresponding characters
+     * @throws MalformedInputException      if decoder is configured to report errors and malformed input is detected
+     * @throws UnmappableCharacterException if decoder is configured to report errors and an unmappable character is
+     *                                      detected
+     */
+    @Nonnull
+    public String decode(@Nonnull CharSequence input, int start, int end) throws MalformedInputException,
+        UnmappableCharacterException {
+        checkRange(input, start, end);
+
+        int firstPercent = indexOfPercent(input, start, end);
+        if (firstPercent == end) {
+            // nothing to decode, so no need to copy (and if it's already a String, toString() is free)
+            return start == 0 && end == input.length() ? input.toString() : input.subSequence(start, end).toString();
+        }
+
+        outputBuf.setLength(0);
+        decodeFrom(input, start, firstPercent, end, outputBuf);
+        return outputBuf.toString();
+    }
+
+    /**
+     * Decode part of a larger sequence and append the result to output, rather than creating an intermediate String.
+     *
+     * @param input  Input with %-encoded representation of characters in this instance's configured character set,
+     *               e.g. "%20" for a space character
+     * @param start  index of the first char to decode
+     * @param end    index after the last char to decode
+     * @param output where the decoded chars will be appended
+     * @throws MalformedInputException      if decoder is configured to report errors and malformed input is detected
+     * @throws UnmappableCharacterException if decoder is configured to report errors and an unmappable character is
+     *                                      detected
+     */
+    public void decode(@Nonnull CharSequence input, int start, int end, @Nonnull StringBuilder output) throws
+        MalformedInputException, UnmappableCharacterException {
+        checkRange(input, start, end);
+
+        int firstPercent = indexOfPercent(input, start, end);
+        if (firstPercent == end) {
+            output.append(input, start, end);
+            return;
+        }
+
+        decodeFrom(input, start, firstPercent, end, output);
+    }
+
+    /**
+     * Decode part of a larger sequence and append the result to output.
+     *
+     * @param input  Input with %-encoded representation of characters in this instance's configured character set,
+     *               e.g. "%20" for a space character
+     * @param start  index of the first char to decode
+     * @param end    index after the last char to decode
+     * @param output where the decoded chars will be appended
+     * @throws IOException if output throws, or if decoding fails as per {@link PercentDecoder#decode(CharSequence,
+     *                     int, int)}
+     */
+    public void decode(@Nonnull CharSequence input, int start, int end, @Nonnull Appendable output) throws
+        IOException {
+        if (output instanceof StringBuilder) {
+            decode(input, start, end, (StringBuilder) output);
+            return;
+        }
+
         outputBuf.setLength(0);
+        decode(input, start, end, outputBuf);
+        output.append(outputBuf);
+    }
+
+    /**
+     * Decode chars straight out of an array, e.g. a buffer a request was read into, and append the result to output.
+     *
+     * @param input  %-encoded chars
+     * @param offset index of the first char in input
+     * @param length number of chars to decode
+     * @param output where the decoded chars will be appended
+     * @throws MalformedInputException      if decoder is configured to report errors and malformed input is detected
+     * @throws UnmappableCharacterException if decoder is configured to report errors and an unmappable character is
+     *                                      detected
+     */
+    public void decode(@Nonnull char[] input, int offset, int length, @Nonnull StringBuilder output) throws
+        MalformedInputException, UnmappableCharacterException {
+        decode(CharBuffer.wrap(input), offset, offset + length, output);
+    }
+
+    /**
+     * Decode chars straight out of an array and append the result to output.
+     *
+     * @param input  %-encoded chars
+     * @param offset index of the first char in input
+     * @param length number of chars to decode
+     * @param output where the decoded chars will be appended
+     * @throws IOException if output throws, or if decoding fails as per {@link PercentDecoder#decode(CharSequence,
+     *                     int, int)}
+     */
+    public void decode(@Nonnull char[] input, int offset, int length, @Nonnull Appendable output) throws IOException {
+        decode(CharBuffer.wrap(input), offset, offset + length, output);
+    }
+
+    /**
+     * @param input        %-encoded input
+     * @param start        index of the first char to decode
+     * @param firstPercent index of the first '%' at or after start. Everything before it is copied as-is.
+     * @param end          index after the last char to decode
+     * @param output       where the decoded chars will be appended
+     */
+    private void decodeFrom(CharSequence input, int start, int firstPercent, int end, StringBuilder output) throws
+        MalformedInputException, UnmappableCharacterException {
         // this is almost always an underestimate of the size needed:
         // only a 4-byte encoding (which is 12 characters input) would case this to be an overestimate
-        outputBuf.ensureCapacity(input.length() / 8);
+        output.ensureCapacity(output.length() + (end - start) / 8);
         encodedBuf.clear();
 
-        for (int i = 0; i < input.length(); i++) {
+        output.append(input, start, firstPercent);
+
+        for (int i = firstPercent; i < end; i++) {
             char c = input.charAt(i);
             if (c != '%') {
-                handleEncodedBytes();
+                handleEncodedBytes(output);
 
-                outputBuf.append(c);
+                // copy the whole run of unencoded chars at once
+                int runEnd = indexOfPercent(input, i + 1, end);
+                output.append(input, i, runEnd);
+                i = runEnd - 1;
                 continue;
             }
 
-            if (i + 2 >= input.length()) {
+            if (i + 2 >= end) {
                 throw new IllegalArgumentException(
-                    "Could not percent decode <" + input + ">: incomplete %-pair at position " + i);
-            }
-
-            // grow the byte buf if needed
-            if (encodedBuf.remaining() == 0) {
-                ByteBuffer largerBuf = ByteBuffer.allocate(encodedBuf.capacity() * 2);
-                encodedBuf.flip();
-                largerBuf.put(encodedBuf);
-                encodedBuf = largerBuf;
+                    "Could not percent decode <" + input.subSequence(start, end) + ">: incomplete %-pair at position " +
+                        (i - start));
             }
 
             // note that we advance i here as we consume chars
-            int msBits = Character.digit(input.charAt(++i), 16);
-            int lsBits = Character.digit(input.charAt(++i), 16);
+            int msBits = hexValue(input.charAt(++i));
+            int lsBits = hexValue(input.charAt(++i));
 
             if (msBits == -1 || lsBits == -1) {
                 throw new IllegalArgumentException("Invalid %-tuple <" + input.subSequence(i - 2, i + 1) + ">");
@@ -106,23 +247,215 @@ public final class PercentDecoder {
             msBits |= lsBits;
 
             // msBits can only have 8 bits set, so cast is safe
-            encodedBuf.put((byte) msBits);
+            putEncodedByte((byte) msBits);
+        }
+
+        handleEncodedBytes(output);
+    }
+
+    /**
+     * Decode percent-encoded text straight from its bytes, e.g. a request line read from a socket or file, without
+     * first creating a String.
+     *
+     * @param input  Bytes of the %-encoded text (normally ascii)
+     * @param offset index of the first byte in input
+     * @param length number of bytes to decode
+     * @return Corresponding string with %-encoded data decoded and converted to their corresponding characters
+     * @throws MalformedInputException      if decoder is configured to report errors and malformed input is detected
+     * @throws UnmappableCharacterException if decoder is configured to report errors and an unmappable character is
+     *                                      detected
+     * @see PercentDecoder#decode(ByteBuffer)
+     */
+    @Nonnull
+    public String decode(@Nonnull byte[] input, int offset, int length) throws MalformedInputException,
+        UnmappableCharacterException {
+        return decode(ByteBuffer.wrap(input, offset, length));
+    }
+
+    /**
+     * Decode percent-encoded text straight from its bytes, e.g. a request line read from a socket or file, without
+     * first creating a String.
+     *
+     * Ascii bytes other than '%' are taken as the corresponding char. Any non-ascii bytes (which shouldn't be there,
+     * but often are) are decoded with this instance's character set along with any adjacent %-encoded bytes.
+     *
+     * @param input Bytes of the %-encoded text (normally ascii), from its position to its limit. The position is
+     *              advanced to the limit.
+     * @return Corresponding string with %-encoded data decoded and converted to their corresponding characters
+     * @throws MalformedInputException      if decoder is configured to report errors and malformed input is detected
+     * @throws UnmappableCharacterException if decoder is configured to report errors and an unmappable character is
+     *                                      detected
+     */
+    @Nonnull
+    public String decode(@Nonnull ByteBuffer input) throws MalformedInputException, UnmappableCharacterException {
+        outputBuf.setLength(0);
+        encodedBuf.clear();
+
+        int start = input.position();
+        int end = input.limit();
+
+        for (int i = start; i < end; i++) {
+            int b = input.get(i) & 0xFF;
+            if (b != '%') {
+                if (b < 0x80) {
+                    handleEncodedBytes(outputBuf);
+                    outputBuf.append((char) b);
+                } else {
+                    putEncodedByte((byte) b);
+                }
+                continue;
+            }
+
+            putEncodedByte(decodePercentTriple(input, start, end, i));
+            i += 2;
         }
 
-        handleEncodedBytes();
+        handleEncodedBytes(outputBuf);
+        input.position(end);
 
         return outputBuf.toString();
     }
 
     /**
-     * Decode any buffered encoded bytes and write them to the output buf.
+     * Percent-decode bytes to bytes, without converting them to chars. This is useful when the decoded bytes are going
+     * to be written somewhere as-is.
+     *
+     * @param input  Bytes of the %-encoded text, from its position to its limit. The position is advanced to the limit.
+     * @param output where the decoded bytes are written, starting at its position
+     * @throws java.nio.BufferOverflowException if output runs out of space. Both buffers will have been advanced past
+     *                                          what was decoded so far.
+     */
+    public static void decodeBytes(@Nonnull ByteBuffer input, @Nonnull ByteBuffer output) {
+        int start = input.position();
+        int end = input.limit();
+
+        for (int i = start; i < end; i++) {
+            byte b = input.get(i);
+            if (b != '%') {
+                output.put(b);
+            } else {
+                output.put(decodePercentTriple(input, start, end, i));
+                i += 2;
+            }
+            input.position(i + 1);
+        }
+    }
+
+    /**
+     * @param input bytes
+     * @param start start of the %-encoded text in input
+     * @param end   end of the %-encoded text in input
+     * @param i     index of a '%' in input
+     * @return the byte represented by the %XX triple at i
+     */
+    private static byte decodePercentTriple(ByteBuffer input, int start, int end, int i) {
+        if (i + 2 >= end) {
+            throw new IllegalArgumentException(
+                "Could not percent decode <" + asciiString(input, start, end) + ">: incomplete %-pair at position " +
+                    (i - start));
+        }
+
+        int msBits = hexValue((char) (input.get(i + 1) & 0xFF));
+        int lsBits = hexValue((char) (input.get(i + 2) & 0xFF));
+
+        if (msBits == -1 || lsBits == -1) {
+            throw new IllegalArgumentException("Invalid %-tuple <" + asciiString(input, i, i + 3) + ">");
+        }
+
+        // can only have 8 bits set, so cast is safe
+        return (byte) ((msBits << 4) | lsBits);
+    }
+
+    /**
+     * @param input bytes
+     * @param start start index (inclusive)
+     * @param end   end index (exclusive)
+     * @return the bytes in the range as a string, for error messages
+     */
+    private static String asciiString(ByteBuffer input, int start, int end) {
+        StringBuilder buf = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            buf.append((char) (input.get(i) & 0xFF));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Add a byte to the encoded bytes buffer, growing it if needed.
+     *
+     * @param b byte to add
+     */
+    private void putEncodedByte(byte b) {
+        if (encodedBuf.remaining() == 0) {
+            ByteBuffer largerBuf = ByteBuffer.allocate(encodedBuf.capacity() * 2);
+            encodedBuf.flip();
+            largerBuf.put(encodedBuf);
+            encodedBuf = largerBuf;
+        }
+
+        encodedBuf.put(b);
+    }
+
+    /**
+     * @param c char
+     * @return the value of c as an ascii hex digit, or -1 if it isn't one
+     */
+    static int hexValue(char c) {
+        return c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+    }
+
+    /**
+     * @param input input
+     * @param start start of the range in input
+     * @param end   end of the range in input
+     * @throws IndexOutOfBoundsException if the range isn't within input
+     */
+    private static void checkRange(CharSequence input, int start, int end) {
+        if (start < 0 || end > input.length() || start > end) {
+            throw new IndexOutOfBoundsException(
+                "Invalid range [" + start + ", " + end + ") for input of length " + input.length());
+        }
+    }
+
+    /**
+     * @param input input string
+     * @param start index to start looking at
+     * @param end   index to stop looking at
+     * @return index of the first '%' in [start, end), or end if there is none
+     */
+    private static int indexOfPercent(CharSequence input, int start, int end) {
+        if (input instanceof String && end == input.length()) {
+            // only worth it when it won't scan past end
+            int index = ((String) input).indexOf('%', start);
+            return index == -1 ? end : index;
+        }
+
+        for (int i = start; i < end; i++) {
+            if (input.charAt(i) == '%') {
+                return i;
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * Decode any buffered encoded bytes and write them to output.
+     *
+     * @param output where the decoded chars will be appended
      */
-    private void handleEncodedBytes() throws MalformedInputException, UnmappableCharacterException {
+    private void handleEncodedBytes(StringBuilder output) throws MalformedInputException, UnmappableCharacterException {
         if (encodedBuf.position() == 0) {
             // nothing to do
             return;
         }
 
+        if (utf8) {
+            decodeUtf8EncodedBytes(output);
+            encodedBuf.clear();
+            return;
+        }
+
         decoder.reset();
         CoderResult coderResult;
 
@@ -135,7 +468,7 @@ public final class PercentDecoder {
             decodedCharBuf.clear();
             coderResult = decoder.decode(encodedBuf, decodedCharBuf, false);
             throwIfError(coderResult);
-            appendDecodedChars();
+            appendDecodedChars(output);
         } while (coderResult == OVERFLOW && encodedBuf.hasRemaining());
 
         // final decode with end-of-input flag
@@ -150,22 +483,156 @@ public final class PercentDecoder {
             throw new IllegalStateException("Expected underflow, but instead final decode returned " + coderResult);
         }
 
-        appendDecodedChars();
+        appendDecodedChars(output);
 
         // we've finished the input, wrap it up
         encodedBuf.clear();
-        flush();
+        flush(output);
+    }
+
+    /**
+     * Decode the buffered encoded bytes as UTF-8 without going through the CharsetDecoder and write them to output.
+     * Malformed sequences are measured the same way the JDK's UTF-8 decoder measures them, so reported lengths and
+     * replacements match what the CharsetDecoder would have produced.
+     */
+    private void decodeUtf8EncodedBytes(StringBuilder output) throws MalformedInputException {
+        // always a heap buffer, written from the start
+        byte[] bytes = encodedBuf.array();
+        int end = encodedBuf.position();
+
+        int i = 0;
+        while (i < end) {
+            int b1 = bytes[i] & 0xFF;
+            int remaining = end - i;
+            int malformedLength;
+
+            if (b1 < 0x80) {
+                output.append((char) b1);
+                i++;
+                continue;
+            } else if (b1 >= 0xC2 && b1 <= 0xDF) {
+                if (remaining < 2) {
+                    malformedLength = remaining;
+                } else {
+                    int b2 = bytes[i + 1] & 0xFF;
+                    if (isContinuation(b2)) {
+                        output.append((char) (((b1 & 0x1F) << 6) | (b2 & 0x3F)));
+                        i += 2;
+                        continue;
+                    }
+                    malformedLength = 1;
+                }
+            } else if (b1 >= 0xE0 && b1 <= 0xEF) {
+                if (remaining < 3) {
+                    malformedLength = remaining > 1 && isMalformed3Lead(b1, bytes[i + 1] & 0xFF) ? 1 : remaining;
+                } else {
+                    int b2 = bytes[i + 1] & 0xFF;
+                    int b3 = bytes[i + 2] & 0xFF;
+                    if (isMalformed3Lead(b1, b2)) {
+                        malformedLength = 1;
+                    } else if (!isContinuation(b3)) {
+                        malformedLength = 2;
+                    } else {
+                        char c = (char) (((b1 & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+                        if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                            output.append(c);
+                            i += 3;
+                            continue;
+                        }
+                        malformedLength = 3;
+                    }
+                }
+            } else if (b1 >= 0xF0 && b1 <= 0xF7) {
+                if (remaining < 4) {
+                    if (b1 > 0xF4 || (remaining > 1 && isMalformed4Lead(b1, bytes[i + 1] & 0xFF))) {
+                        malformedLength = 1;
+                    } else if (remaining > 2 && !isContinuation(bytes[i + 2] & 0xFF)) {
+                        malformedLength = 2;
+                    } else {
+                        malformedLength = remaining;
+                    }
+                } else {
+                    int b2 = bytes[i + 1] & 0xFF;
+                    int b3 = bytes[i + 2] & 0xFF;
+                    int b4 = bytes[i + 3] & 0xFF;
+                    if (b1 > 0xF4 || isMalformed4Lead(b1, b2)) {
+                        malformedLength = 1;
+                    } else if (!isContinuation(b3)) {
+                        malformedLength = 2;
+                    } else if (!isContinuation(b4)) {
+                        malformedLength = 3;
+                    } else {
+                        output.appendCodePoint(
+                            ((b1 & 0x07) << 18) | ((b2 & 0x3F) << 12) | ((b3 & 0x3F) << 6) | (b4 & 0x3F));
+                        i += 4;
+                        continue;
+                    }
+                }
+            } else {
+                // continuation byte without a lead, or a lead for an overlong or out of range sequence
+                malformedLength = 1;
+            }
+
+            handleMalformedUtf8(malformedLength, output);
+            i += malformedLength;
+        }
+    }
+
+    /**
+     * Handle malformed input the way the configured decoder would.
+     *
+     * @param length number of malformed bytes
+     * @param output where any replacement will be appended
+     * @throws MalformedInputException if the decoder is configured to report malformed input
+     */
+    private void handleMalformedUtf8(int length, StringBuilder output) throws MalformedInputException {
+        CodingErrorAction action = decoder.malformedInputAction();
+        if (action == CodingErrorAction.REPORT) {
+            throw new MalformedInputException(length);
+        }
+        if (action == CodingErrorAction.REPLACE) {
+            output.append(decoder.replacement());
+        }
+    }
+
+    /**
+     * @param b byte value (0-255)
+     * @return true if b is a UTF-8 continuation byte (10xxxxxx)
+     */
+    private static boolean isContinuation(int b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    /**
+     * @param b1 lead byte of a 3 byte sequence
+     * @param b2 second byte
+     * @return true if b2 can't follow b1 (not a continuation, or an overlong encoding)
+     */
+    private static boolean isMalformed3Lead(int b1, int b2) {
+        return (b1 == 0xE0 && (b2 & 0xE0) == 0x80) || !isContinuation(b2);
+    }
+
+    /**
+     * @param b1 lead byte of a 4 byte sequence
+     * @param b2 second byte
+     * @return true if b2 can't follow b1 (not a continuation, an overlong encoding, or above U+10FFFF)
+     */
+    private static boolean isMalformed4Lead(int b1, int b2) {
+        return (b1 == 0xF0 && (b2 < 0x90 || b2 > 0xBF)) || (b1 == 0xF4 && (b2 & 0xF0) != 0x80) ||
+            !isContinuation(b2);
     }
 
     /**
      * Must only be called when the input encoded bytes buffer is empty
+     *
+     * @param output where any remaining decoded chars will be appended
      */
-    private void flush() throws MalformedInputException, UnmappableCharacterException {
+    private void flush(StringBuilder output) throws MalformedInputException, UnmappableCharacterException {
         CoderResult coderResult;
         decodedCharBuf.clear();
 
         coderResult = decoder.flush(decodedCharBuf);
-        appendDecodedChars();
+        appendDecodedChars(output);
 
         throwIfError(coderResult);
 
@@ -191,10 +658,12 @@ public final class PercentDecoder {
         }    }
 
     /**
-     * Flip the decoded char buf and append it to the string bug
+     * Flip the decoded char buf and append it to output
+     *
+     * @param output where the decoded chars will be appended
      */
-    private void appendDecodedChars() {
+    private void appendDecodedChars(StringBuilder output) {
         decodedCharBuf.flip();
-        outputBuf.append(decodedCharBuf);
+        output.append(decodedCharBuf);
     }
 }
@@ -5,45 +5,94 @@
 package com.palominolabs.http.url;
 
 import javax.annotation.Nonnull;
-import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.MalformedInputException;
 import java.nio.charset.UnmappableCharacterException;
 import java.util.BitSet;
 
+import static com.google.common.base.Charsets.ISO_8859_1;
+import static com.google.common.base.Charsets.US_ASCII;
+import static com.google.common.base.Charsets.UTF_8;
 import static java.lang.Character.isHighSurrogate;
 import static java.lang.Character.isLowSurrogate;
+import static java.lang.Character.toCodePoint;
+import static java.nio.charset.CodingErrorAction.REPLACE;
 
 /**
  * Encodes unsafe characters as a sequence of %XX hex-encoded bytes.
  *
  * This is typically done when encoding components of URLs. See {@link UrlPercentEncoders} for pre-configured
  * PercentEncoder instances.
+ *
+ * UTF-8 is encoded without using the CharsetEncoder's mutable state, so a UTF-8 instance may be shared across threads
+ * (as long as its CharsetEncoder isn't reconfigured). Instances for any other charset are not thread safe.
  */
-@NotThreadSafe
 public final class PercentEncoder {
 
     /**
-     * Amount to add to a lowercase ascii alpha char to make it an uppercase. Used for hex encoding.
+     * Uppercase hex digit for each nibble value.
+     */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Percent-encoded form of each byte value. The first 128 are also the encoded form of each ascii char for charsets
+     * that encode ascii as the corresponding single byte.
      */
-    private static final int UPPER_CASE_DIFF = 'a' - 'A';
+    private static final String[] PERCENT_ENCODED_BYTES = new String[256];
 
-    private final BitSet safeChars;
+    static {
+        for (int i = 0; i < PERCENT_ENCODED_BYTES.length; i++) {
+            PERCENT_ENCODED_BYTES[i] = new String(new char[]{'%', HEX_DIGITS[i >> 4], HEX_DIGITS[i & 0xF]});
+        }
+    }
+
+    private final SafeCharSet safeChars;
     private final CharsetEncoder encoder;
-    private final StringBuilder outputBuf = new StringBuilder();
+    /**
+     * true if the encoder's charset represents ascii chars as the same single byte, so ascii can skip the encoder
+     */
+    private final boolean asciiCompatible;
+    /**
+     * true if the encoder's charset is UTF-8, which is encoded directly rather than with the encoder
+     */
+    private final boolean utf8;
 
     /**
      * @param safeChars      the set of chars to NOT encode, stored as a bitset with the int positions corresponding to
-     *                       those chars set to true. Treated as read only.
+     *                       those chars set to true. Copied, and must only contain ascii chars.
      * @param charsetEncoder charset encoder to encode characters with. Make sure to not re-use CharsetEncoder instances
      *                       across threads.
+     * @see SafeCharSet#fromBitSet(BitSet)
      */
     public PercentEncoder(@Nonnull BitSet safeChars, @Nonnull CharsetEncoder charsetEncoder) {
+        this(SafeCharSet.fromBitSet(safeChars), charsetEncoder);
+    }
+
+    /**
+     * Create a thread-safe UTF-8 encoder that replaces malformed input (lone surrogates).
+     *
+     * @param safeChars the set of chars to NOT encode
+     */
+    public PercentEncoder(@Nonnull SafeCharSet safeChars) {
+        this(safeChars, UTF_8.newEncoder().onMalformedInput(REPLACE).onUnmappableCharacter(REPLACE));
+    }
+
+    /**
+     * @param safeChars      the set of chars to NOT encode
+     * @param charsetEncoder charset encoder to encode characters with. Make sure to not re-use CharsetEncoder instances
+     *                       across threads.
+     */
+    public PercentEncoder(@Nonnull SafeCharSet safeChars, @Nonnull CharsetEncoder charsetEncoder) {
         this.safeChars = safeChars;
         this.encoder = charsetEncoder;
+        this.asciiCompatible = isAsciiCompatible(charsetEncoder);
+        this.utf8 = charsetEncoder.charset().equals(UTF_8);
     }
 
     /**
@@ -56,53 +105,514 @@ public final class PercentEncoder {
      */
     @Nonnull
     public String encode(@Nonnull CharSequence input) throws MalformedInputException, UnmappableCharacterException {
-        // output buf will be at least as long as the input
-        outputBuf.setLength(0);
-        outputBuf.ensureCapacity(input.length());
+        int firstUnsafe = indexOfUnsafe(input, 0, input.length());
+        if (firstUnsafe == input.length()) {
+            // nothing to encode, so no need to copy (and if it's already a String, toString() is free)
+            return input.toString();
+        }
+
+        StringBuilder outputBuf = new StringBuilder();
+        encodeFrom(input, 0, firstUnsafe, input.length(), outputBuf);
+        return outputBuf.toString();
+    }
+
+    /**
+     * Encode input and append the result to output, rather than creating an intermediate String.
+     *
+     * @param input  input string
+     * @param output where the input string, with every character that's not in safeChars turned into its byte
+     *               representation via the instance's encoder and then percent-encoded, will be appended
+     * @throws IOException if output throws, or if encoding fails as per {@link PercentEncoder#encode(CharSequence)}
+     */
+    public void encode(@Nonnull CharSequence input, @Nonnull Appendable output) throws IOException {
+        if (output instanceof StringBuilder) {
+            encode(input, (StringBuilder) output);
+            return;
+        }
+
+        StringBuilder outputBuf = new StringBuilder();
+        encode(input, outputBuf);
+        output.append(outputBuf);
+    }
+
+    /**
+     * Encode input and append the result to output, rather than creating an intermediate String.
+     *
+     * @param input  input string
+     * @param output where the input string, with every character that's not in safeChars turned into its byte
+     *               representation via the instance's encoder and then percent-encoded, will be appended
+     * @throws MalformedInputException      if encoder is configured to report errors and malformed input is detected
+     * @throws UnmappableCharacterException if encoder is configured to report errors and an unmappable character is
+     *                                      detected
+     */
+    public void encode(@Nonnull CharSequence input, @Nonnull StringBuilder output) throws MalformedInputException,
+        UnmappableCharacterException {
+        encode(input, 0, input.length(), output);
+    }
+
+    /**
+     * Encode part of a larger sequence, e.g. one component of a request buffer, and append the result to output,
+     * without extracting it first.
+     *
+     * @param input  input string
+     * @param start  index of the first char to encode
+     * @param end    index after the last char to encode
+     * @param output where input[start, end), with every character that's not in safeChars turned into its byte
+     *               representation via the instance's encoder and then percent-encoded, will be appended
+     * @throws MalformedInputException      if encoder is configured to report errors and malformed input is detected
+     * @throws UnmappableCharacterException if encoder is configured to report errors and an unmappable character is
+     *                                      detected
+     */
+    public void encode(@Nonnull CharSequence input, int start, int end, @Nonnull StringBuilder output) throws
+        MalformedInputException, UnmappableCharacterException {
+        if (start < 0 || end > input.length() || start > end) {
+            throw new IndexOutOfBoundsException(
+                "Invalid range [" + start + ", " + end + ") for input of length " + input.length());
+        }
+
+        int firstUnsafe = indexOfUnsafe(input, start, end);
+        if (firstUnsafe == end) {
+            output.append(input, start, end);
+            return;
+        }
+
+        encodeFrom(input, start, firstUnsafe, end, output);
+    }
+
+    /**
+     * Encode part of a larger sequence and append the result to output.
+     *
+     * @param input  input string
+     * @param start  index of the first char to encode
+     * @param end    index after the last char to encode
+     * @param output where the encoded input[start, end) will be appended
+     * @throws IOException if output throws, or if encoding fails as per {@link PercentEncoder#encode(CharSequence)}
+     */
+    public void encode(@Nonnull CharSequence input, int start, int end, @Nonnull Appendable output) throws
+        IOException {
+        if (output instanceof StringBuilder) {
+            encode(input, start, end, (StringBuilder) output);
+            return;
+        }
 
-        // need to handle surrogate pairs, so need to be able to handle 2 chars worth of stuff at once
+        StringBuilder outputBuf = new StringBuilder();
+        encode(input, start, end, outputBuf);
+        output.append(outputBuf);
+    }
+
+    /**
+     * Encode chars straight out of an array and append the result to output.
+     *
+     * @param input  input chars
+     * @param offset index of the first char in input
+     * @param length number of chars to encode
+     * @param output where the encoded chars will be appended
+     * @throws MalformedInputException      if encoder is configured to report errors and malformed input is detected
+     * @throws UnmappableCharacterException if encoder is configured to report errors and an unmappable character is
+     *                                      detected
+     */
+    public void encode(@Nonnull char[] input, int offset, int length, @Nonnull StringBuilder output) throws
+        MalformedInputException, UnmappableCharacterException {
+        encode(CharBuffer.wrap(input), offset, offset + length, output);
+    }
+
+    /**
+     * Encode chars straight out of an array and append the result to output.
+     *
+     * @param input  input chars
+     * @param offset index of the first char in input
+     * @param length number of chars to encode
+     * @param output where the encoded chars will be appended
+     * @throws IOException if output throws, or if encoding fails as per {@link PercentEncoder#encode(CharSequence)}
+     */
+    public void encode(@Nonnull char[] input, int offset, int length, @Nonnull Appendable output) throws IOException {
+        encode(CharBuffer.wrap(input), offset, offset + length, output);
+    }
+
+    /**
+     * Encode input directly into the US-ASCII bytes of its percent-encoded form, e.g. into a buffer for an HTTP request
+     * line, rather than creating a String and then encoding that.
+     *
+     * @param input  input string
+     * @param output where the encoded input will be written, starting at its position
+     * @return {@link CoderResult#UNDERFLOW} if all of input was encoded, or {@link CoderResult#OVERFLOW} if output
+     * doesn't have enough space remaining, in which case nothing is written
+     * @throws MalformedInputException      if encoder is configured to report errors and malformed input is detected
+     * @throws UnmappableCharacterException if encoder is configured to report errors and an unmappable character is
+     *                                      detected
+     * @see PercentEncoder#encodedLength(CharSequence)
+     */
+    @Nonnull
+    public CoderResult encode(@Nonnull CharSequence input, @Nonnull ByteBuffer output) throws
+        MalformedInputException, UnmappableCharacterException {
+        if (!utf8) {
+            // only UTF-8 has a direct path to bytes
+            String encoded = encode(input);
+            if (encoded.length() > output.remaining()) {
+                return CoderResult.OVERFLOW;
+            }
+            for (int i = 0; i < encoded.length(); i++) {
+                output.put((byte) encoded.charAt(i));
+            }
+            return CoderResult.UNDERFLOW;
+        }
+
+        if (encodedLength(input) > output.remaining()) {
+            return CoderResult.OVERFLOW;
+        }
+
+        putEncoded(input, output);
+        return CoderResult.UNDERFLOW;
+    }
 
-        // why is this a float? sigh.
-        int maxBytes = 1 + (int) encoder.maxBytesPerChar();
-        ByteBuffer byteBuffer = ByteBuffer.allocate(maxBytes * 2);
-        CharBuffer charBuffer = CharBuffer.allocate(2);
+    /**
+     * Like {@link PercentEncoder#encode(CharSequence, ByteBuffer)}, but without checking that output has room, for
+     * callers that have already sized it with {@link PercentEncoder#encodedLength(CharSequence)}.
+     *
+     * @param input  input string
+     * @param output where the encoded input will be written, starting at its position
+     * @throws java.nio.BufferOverflowException if output runs out of space
+     */
+    void putEncoded(@Nonnull CharSequence input, @Nonnull ByteBuffer output) throws MalformedInputException,
+        UnmappableCharacterException {
+        if (!utf8) {
+            String encoded = encode(input);
+            for (int i = 0; i < encoded.length(); i++) {
+                output.put((byte) encoded.charAt(i));
+            }
+            return;
+        }
 
         for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+
+            if (safeChars.contains(c)) {
+                output.put((byte) c);
+            } else if (c < 0x80) {
+                putPercentEncodedByte(output, c);
+            } else {
+                int codePoint = codePointAt(input, i, input.length());
+                if (codePoint > Character.MAX_VALUE) {
+                    i++;
+                }
+                putUtf8EncodedBytes(output, codePoint);
+            }
+        }
+    }
+
+    /**
+     * Encode input directly into the US-ASCII bytes of its percent-encoded form.
+     *
+     * @param input  input string
+     * @param output where the encoded input will be written
+     * @param offset index in output to start writing at
+     * @return the index in output after the last byte written, or -1 if output doesn't have enough space after offset,
+     * in which case nothing is written
+     * @throws MalformedInputException      if encoder is configured to report errors and malformed input is detected
+     * @throws UnmappableCharacterException if encoder is configured to report errors and an unmappable character is
+     *                                      detected
+     * @see PercentEncoder#encode(CharSequence, ByteBuffer)
+     */
+    public int encode(@Nonnull CharSequence input, @Nonnull byte[] output, int offset) throws MalformedInputException,
+        UnmappableCharacterException {
+        ByteBuffer buf = ByteBuffer.wrap(output, offset, output.length - offset);
+        if (encode(input, buf).isOverflow()) {
+            return -1;
+        }
+
+        return buf.position();
+    }
+
+    /**
+     * @param input       input string
+     * @param start       index of the first char to encode
+     * @param firstUnsafe index of the first char in [start, end) that is not safe. Everything before it is copied
+     *                    as-is.
+     * @param end         index after the last char to encode
+     * @param output      where the encoded input will be appended
+     */
+    private void encodeFrom(CharSequence input, int start, int firstUnsafe, int end, StringBuilder output) throws
+        MalformedInputException, UnmappableCharacterException {
+        // output will grow by at least as much as the input
+        output.ensureCapacity(output.length() + end - start);
+        output.append(input, start, firstUnsafe);
+
+        // only needed for chars that have to go through the charset encoder, so allocated lazily
+        ByteBuffer byteBuffer = null;
+        CharBuffer charBuffer = null;
+
+        for (int i = firstUnsafe; i < end; i++) {
 
             char c = input.charAt(i);
 
-            if (safeChars.get(c)) {
-                outputBuf.append(c);
+            if (safeChars.contains(c)) {
+                // copy the whole run of safe chars at once
+                int runEnd = indexOfUnsafe(input, i + 1, end);
+                output.append(input, i, runEnd);
+                i = runEnd - 1;
+                continue;
+            }
+
+            if (c < 0x80 && asciiCompatible) {
+                output.append(PERCENT_ENCODED_BYTES[c]);
                 continue;
             }
 
-            // not a safe char
+            // not a safe char, so find the whole code point: it may be the first half of a surrogate pair
+            int codePoint = codePointAt(input, i, end);
+            if (codePoint > Character.MAX_VALUE) {
+                i++;
+            }
+
+            if (utf8) {
+                addUtf8EncodedChars(output, codePoint);
+                continue;
+            }
+
+            if (charBuffer == null) {
+                // need to handle surrogate pairs, so need to be able to handle 2 chars worth of stuff at once
+
+                // why is this a float? sigh.
+                int maxBytes = 1 + (int) encoder.maxBytesPerChar();
+                byteBuffer = ByteBuffer.allocate(maxBytes * 2);
+                charBuffer = CharBuffer.allocate(2);
+            }
+
             charBuffer.clear();
             byteBuffer.clear();
             charBuffer.append(c);
-            if (isHighSurrogate(c)) {
-                if (input.length() > i + 1) {
-                    // get the low surrogate as well
-                    char lowSurrogate = input.charAt(i + 1);
-                    if (isLowSurrogate(lowSurrogate)) {
-                        charBuffer.append(lowSurrogate);
-                        i++;
-                    } else {
-                        throw new IllegalArgumentException(
-                            "Invalid UTF-16: Char " + (i) + " is a high surrogate (\\u" + Integer
-                                .toHexString(c) + "), but char " + (i + 1) + " is not a low surrogate (\\u" + Integer
-                                .toHexString(lowSurrogate) + ")");
-                    }
-                } else {
-                    throw new IllegalArgumentException(
-                        "Invalid UTF-16: The last character in the input string was a high surrogate (\\u" + Integer
-                            .toHexString(c) + ")");
-                }
+            if (codePoint != c) {
+                // i has already been advanced to the low surrogate
+                charBuffer.append(input.charAt(i));
             }
-            addEncodedChars(outputBuf, byteBuffer, charBuffer, encoder);
+            addEncodedChars(output, byteBuffer, charBuffer, encoder);
         }
+    }
 
-        return outputBuf.toString();
+    /**
+     * Calculate the length of the encoded form of input without building it. For UTF-8 this only counts chars; other
+     * charsets (and malformed UTF-16) are measured by encoding.
+     *
+     * @param input input string
+     * @return the length of the string that {@link PercentEncoder#encode(CharSequence)} would produce
+     * @throws MalformedInputException      if encoder is configured to report errors and malformed input is detected
+     * @throws UnmappableCharacterException if encoder is configured to report errors and an unmappable character is
+     *                                      detected
+     */
+    public int encodedLength(@Nonnull CharSequence input) throws MalformedInputException,
+        UnmappableCharacterException {
+        int firstUnsafe = indexOfUnsafe(input, 0, input.length());
+        if (firstUnsafe == input.length()) {
+            return input.length();
+        }
+        if (!utf8) {
+            return encode(input).length();
+        }
+
+        int length = firstUnsafe;
+        for (int i = firstUnsafe; i < input.length(); i++) {
+            char c = input.charAt(i);
+
+            if (safeChars.contains(c)) {
+                length++;
+            } else if (c < 0x80) {
+                length += 3;
+            } else if (c < 0x800) {
+                length += 6;
+            } else if (isHighSurrogate(c) && input.length() > i + 1 && isLowSurrogate(input.charAt(i + 1))) {
+                length += 12;
+                i++;
+            } else if (isHighSurrogate(c) || isLowSurrogate(c)) {
+                // malformed, so let encode() apply the error handling
+                return encode(input).length();
+            } else {
+                length += 9;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * @param input input string
+     * @return true if input could be the output of this encoder: every char is either safe or part of a %-pair
+     */
+    boolean isEncoded(@Nonnull CharSequence input) {
+        int length = input.length();
+        for (int i = indexOfUnsafe(input, 0, length); i < length; i = indexOfUnsafe(input, i + 3, length)) {
+            if (input.charAt(i) != '%' || i + 2 >= length || PercentDecoder.hexValue(input.charAt(i + 1)) < 0 ||
+                PercentDecoder.hexValue(input.charAt(i + 2)) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param input input string
+     * @param start index to start looking at
+     * @param end   index to stop looking at
+     * @return index of the first char in [start, end) that is not a safe char, or end if there is none
+     */
+    private int indexOfUnsafe(CharSequence input, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!safeChars.contains(input.charAt(i))) {
+                return i;
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * @param charsetEncoder encoder
+     * @return true if the encoder's charset is known to encode every ascii char as the single byte of the same value
+     */
+    private static boolean isAsciiCompatible(CharsetEncoder charsetEncoder) {
+        Charset charset = charsetEncoder.charset();
+        return charset.equals(UTF_8) || charset.equals(US_ASCII) || charset.equals(ISO_8859_1);
+    }
+
+    /**
+     * @param input input string
+     * @param i     index of a char in input
+     * @param end   end of the part of input being encoded
+     * @return the code point at i, including the low surrogate if the char at i is a high surrogate. A lone low
+     * surrogate is returned as-is.
+     * @throws IllegalArgumentException if the char at i is a high surrogate that isn't followed by a low surrogate
+     */
+    private static int codePointAt(CharSequence input, int i, int end) {
+        char c = input.charAt(i);
+        if (!isHighSurrogate(c)) {
+            return c;
+        }
+
+        if (end > i + 1) {
+            // get the low surrogate as well
+            char lowSurrogate = input.charAt(i + 1);
+            if (isLowSurrogate(lowSurrogate)) {
+                return toCodePoint(c, lowSurrogate);
+            }
+
+            throw new IllegalArgumentException(
+                "Invalid UTF-16: Char " + (i) + " is a high surrogate (\\u" + Integer
+                    .toHexString(c) + "), but char " + (i + 1) + " is not a low surrogate (\\u" + Integer
+                    .toHexString(lowSurrogate) + ")");
+        }
+
+        throw new IllegalArgumentException(
+            "Invalid UTF-16: The last character in the input string was a high surrogate (\\u" + Integer
+                .toHexString(c) + ")");
+    }
+
+    /**
+     * @param codePoint a code point
+     * @return the number of bytes in the UTF-8 encoding of codePoint
+     */
+    private static int utf8Length(int codePoint) {
+        if (codePoint < 0x80) {
+            return 1;
+        }
+        if (codePoint < 0x800) {
+            return 2;
+        }
+        if (codePoint < 0x10000) {
+            return 3;
+        }
+
+        return 4;
+    }
+
+    /**
+     * @param codePoint a code point
+     * @return the UTF-8 encoding of codePoint, packed into an int with the first byte in the most significant occupied
+     * position
+     * @see PercentEncoder#utf8Length(int)
+     */
+    private static int utf8Bytes(int codePoint) {
+        if (codePoint < 0x80) {
+            return codePoint;
+        }
+        if (codePoint < 0x800) {
+            return (0xC0 | (codePoint >> 6)) << 8
+                | (0x80 | (codePoint & 0x3F));
+        }
+        if (codePoint < 0x10000) {
+            return (0xE0 | (codePoint >> 12)) << 16
+                | (0x80 | ((codePoint >> 6) & 0x3F)) << 8
+                | (0x80 | (codePoint & 0x3F));
+        }
+
+        return (0xF0 | (codePoint >> 18)) << 24
+            | (0x80 | ((codePoint >> 12) & 0x3F)) << 16
+            | (0x80 | ((codePoint >> 6) & 0x3F)) << 8
+            | (0x80 | (codePoint & 0x3F));
+    }
+
+    /**
+     * Encode a code point to UTF-8 without going through the CharsetEncoder, then percent-encode those bytes into
+     * output.
+     *
+     * @param output    where the encoded version of codePoint will be written
+     * @param codePoint a non-ascii code point, or a lone low surrogate
+     * @throws MalformedInputException if codePoint is a lone low surrogate and the encoder is configured to report
+     *                                 malformed input
+     */
+    private void addUtf8EncodedChars(StringBuilder output, int codePoint) throws MalformedInputException {
+        if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT && isLowSurrogate((char) codePoint)) {
+            // a high surrogate would have been paired up or rejected already, so this one is on its own
+            for (byte b : getMalformedReplacement()) {
+                appendPercentEncodedByte(output, b);
+            }
+            return;
+        }
+
+        int bytes = utf8Bytes(codePoint);
+        for (int shift = 8 * (utf8Length(codePoint) - 1); shift >= 0; shift -= 8) {
+            appendPercentEncodedByte(output, bytes >>> shift);
+        }
+    }
+
+    /**
+     * Encode a code point to UTF-8 without going through the CharsetEncoder, then write the percent-encoded form of
+     * those bytes into output.
+     *
+     * @param output    where the encoded version of codePoint will be written
+     * @param codePoint a non-ascii code point, or a lone low surrogate
+     * @throws MalformedInputException if codePoint is a lone low surrogate and the encoder is configured to report
+     *                                 malformed input
+     */
+    private void putUtf8EncodedBytes(ByteBuffer output, int codePoint) throws MalformedInputException {
+        if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT && isLowSurrogate((char) codePoint)) {
+            for (byte b : getMalformedReplacement()) {
+                putPercentEncodedByte(output, b);
+            }
+            return;
+        }
+
+        int bytes = utf8Bytes(codePoint);
+        for (int shift = 8 * (utf8Length(codePoint) - 1); shift >= 0; shift -= 8) {
+            putPercentEncodedByte(output, bytes >>> shift);
+        }
+    }
+
+    /**
+     * Handle malformed input the way the configured encoder would.
+     *
+     * @return the bytes to percent-encode in place of the malformed input (empty if it should be ignored)
+     * @throws MalformedInputException if the encoder is configured to report malformed input
+     */
+    private byte[] getMalformedReplacement() throws MalformedInputException {
+        CodingErrorAction action = encoder.malformedInputAction();
+        if (action == CodingErrorAction.REPORT) {
+            throw new MalformedInputException(1);
+        }
+        if (action == CodingErrorAction.REPLACE) {
+            return encoder.replacement();
+        }
+
+        return new byte[0];
     }
 
     /**
@@ -129,18 +639,26 @@ public final class PercentEncoder {
         byteBuffer.flip();
 
         while (byteBuffer.hasRemaining()) {
-            byte b = byteBuffer.get();
-
-            int msbits = (b >> 4) & 0xF;
-            int lsbits = b & 0xF;
+            appendPercentEncodedByte(output, byteBuffer.get());
+        }
+    }
 
-            char msbitsChar = Character.forDigit(msbits, 16);
-            char lsbitsChar = Character.forDigit(lsbits, 16);
+    /**
+     * @param output where the %XX form of b will be written
+     * @param b      byte to percent-encode; only the low 8 bits are used
+     */
+    private static void appendPercentEncodedByte(StringBuilder output, int b) {
+        output.append(PERCENT_ENCODED_BYTES[b & 0xFF]);
+    }
 
-            output.append('%');
-            output.append(capitalizeIfLetter(msbitsChar));
-            output.append(capitalizeIfLetter(lsbitsChar));
-        }
+    /**
+     * @param output where the %XX form of b will be written, as ascii bytes
+     * @param b      byte to percent-encode; only the low 8 bits are used
+     */
+    private static void putPercentEncodedByte(ByteBuffer output, int b) {
+        output.put((byte) '%');
+        output.put((byte) HEX_DIGITS[(b >> 4) & 0xF]);
+        output.put((byte) HEX_DIGITS[b & 0xF]);
     }
 
     /**
@@ -160,16 +678,4 @@ public final class PercentEncoder {
             throw new UnmappableCharacterException(result.length());
         }
     }
-
-    /**
-     * @param c ascii lowercase alphabetic or numeric char
-     * @return char uppercased if a letter
-     */
-    private static char capitalizeIfLetter(char c) {
-        if (Character.isLetter(c)) {
-            return (char) (c - UPPER_CASE_DIFF);
-        }
-
-        return c;
-    }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2012 Palomino Labs, Inc.
+ */
+
+package com.palominolabs.http.url;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.nio.charset.CharacterCodingException;
+
+import static com.palominolabs.http.url.UrlPercentEncoders.getFragmentEncoder;
+import static com.palominolabs.http.url.UrlPercentEncoders.getMatrixEncoder;
+import static com.palominolabs.http.url.UrlPercentEncoders.getPathEncoder;
+import static com.palominolabs.http.url.UrlPercentEncoders.getQueryEncoder;
+
+/**
+ * The encoded form of a constant URL component (e.g. an API version path segment or a fixed query param name), so that
+ * it can be encoded once and then appended as-is by {@link UrlBuilder} every time it's used.
+ *
+ * Each instance is for one kind of component, since e.g. '=' is safe in a path segment but not in a query param. Using
+ * it as a different kind of component is an error.
+ */
+@Immutable
+public final class PreEncoded {
+
+    @Nonnull
+    private final String encoded;
+
+    /**
+     * The shared encoder for the component this was encoded for
+     */
+    @Nonnull
+    private final PercentEncoder encoder;
+
+    PreEncoded(@Nonnull String encoded, @Nonnull PercentEncoder encoder) {
+        this.encoded = encoded;
+        this.encoder = encoder;
+    }
+
+    /**
+     * @param segment a path segment
+     * @return the encoded segment, for use with {@link UrlBuilder#pathSegment(PreEncoded)}
+     * @throws CharacterCodingException if character encoding fails
+     */
+    @Nonnull
+    public static PreEncoded pathSegment(@Nonnull String segment) throws CharacterCodingException {
+        return new PreEncoded(getPathEncoder().encode(segment), getPathEncoder());
+    }
+
+    /**
+     * @param nameOrValue a matrix param name or value
+     * @return the encoded name or value, for use with {@link UrlBuilder#matrixParam(PreEncoded, PreEncoded)}
+     * @throws CharacterCodingException if character encoding fails
+     */
+    @Nonnull
+    public static PreEncoded matrixParam(@Nonnull String nameOrValue) throws CharacterCodingException {
+        return new PreEncoded(getMatrixEncoder().encode(nameOrValue), getMatrixEncoder());
+    }
+
+    /**
+     * @param nameOrValue a query param name or value
+     * @return the encoded name or value, for use with {@link UrlBuilder#queryParam(PreEncoded, PreEncoded)}
+     * @throws CharacterCodingException if character encoding fails
+     */
+    @Nonnull
+    public static PreEncoded queryParam(@Nonnull String nameOrValue) throws CharacterCodingException {
+        return new PreEncoded(getQueryEncoder().encode(nameOrValue), getQueryEncoder());
+    }
+
+    /**
+     * @param fragment a fragment
+     * @return the encoded fragment, for use with {@link UrlBuilder#fragment(PreEncoded)}
+     * @throws CharacterCodingException if character encoding fails
+     */
+    @Nonnull
+    public static PreEncoded fragment(@Nonnull String fragment) throws CharacterCodingException {
+        return new PreEncoded(getFragmentEncoder().encode(fragment), getFragmentEncoder());
+    }
+
+    /**
+     * @param expected the encoder for the component this is being used as
+     * @param component name of the component for the error message
+     * @return this
+     * @throws IllegalArgumentException if this was encoded for a different component
+     */
+    @Nonnull
+    PreEncoded checkEncoder(@Nonnull PercentEncoder expected, @Nonnull String component) {
+        if (encoder != expected) {
+            throw new IllegalArgumentException("<" + encoded + "> was not encoded as a " + component);
+        }
+
+        return this;
+    }
+
+    /**
+     * @return the encoded text
+     */
+    @Nonnull
+    String getEncoded() {
+        return encoded;
+    }
+
+    /**
+     * @return the encoded text
+     */
+    @Override
+    public String toString() {
+        return encoded;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PreEncoded)) {
+            return false;
+        }
+
+        PreEncoded that = (PreEncoded) o;
+        return encoded.equals(that.encoded) && encoder == that.encoder;
+    }
+
+    @Override
+    public int hashCode() {
+        return encoded.hashCode();
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2012 Palomino Labs, Inc.
+ */
+
+package com.palominolabs.http.url;
+
+/**
+ * How {@link UrlBuilder#parse(CharSequence, java.nio.charset.CharsetDecoder, QueryParsePolicy)} and {@link
+ * UrlBuilder#fromUrl(java.net.URL, java.nio.charset.CharsetDecoder, QueryParsePolicy)} treat query strings that aren't
+ * a clean list of name=value pairs.
+ */
+public enum QueryParsePolicy {
+    /**
+     * Every query param must be exactly one name, '=', and a non-empty value, or IllegalArgumentException is thrown.
+     */
+    STRICT(false, false),
+    /**
+     * Accept the query strings that are common in practice: a param without '=' ("?flag") or with nothing after it
+     * ("?a=") has an empty value, everything after the first '=' is the value ("?a=b=c" is "a" = "b=c"), and empty
+     * params ("?a=1&amp;&amp;b=2", a trailing '&amp;', or an empty query) are skipped.
+     */
+    LENIENT(true, false),
+    /**
+     * As per {@link QueryParsePolicy#LENIENT}, and also decode '+' as a space, as in HTML form submissions. An encoded
+     * '+' ("%2B") is still a '+'.
+     */
+    LENIENT_PLUS_AS_SPACE(true, true);
+
+    private final boolean lenient;
+    private final boolean plusAsSpace;
+
+    QueryParsePolicy(boolean lenient, boolean plusAsSpace) {
+        this.lenient = lenient;
+        this.plusAsSpace = plusAsSpace;
+    }
+
+    boolean isLenient() {
+        return lenient;
+    }
+
+    boolean isPlusAsSpace() {
+        return plusAsSpace;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012 Palomino Labs, Inc.
+ */
+
+package com.palominolabs.http.url;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.util.BitSet;
+
+/**
+ * An immutable set of ascii chars that a {@link PercentEncoder} will leave as-is.
+ *
+ * Every char that is safe to leave unencoded in some part of a URL is ascii, so the set is stored as two 64-bit masks
+ * covering 0-127 rather than a general purpose (and mutable) {@link BitSet}.
+ */
+@Immutable
+public final class SafeCharSet {
+
+    /**
+     * chars 0-63
+     */
+    private final long lowMask;
+    /**
+     * chars 64-127
+     */
+    private final long highMask;
+
+    private SafeCharSet(long lowMask, long highMask) {
+        this.lowMask = lowMask;
+        this.highMask = highMask;
+    }
+
+    /**
+     * @param bitSet the set of chars, stored as a bitset with the int positions corresponding to those chars set to
+     *               true. Copied, so later changes to it will not affect the returned set.
+     * @return a SafeCharSet containing the same chars as bitSet
+     * @throws IllegalArgumentException if bitSet contains anything outside of the ascii range
+     */
+    @Nonnull
+    public static SafeCharSet fromBitSet(@Nonnull BitSet bitSet) {
+        if (bitSet.length() > 128) {
+            throw new IllegalArgumentException(
+                "Safe chars must be ascii, but char \\u" + Integer.toHexString(bitSet.length() - 1) + " was set");
+        }
+
+        long lowMask = 0;
+        long highMask = 0;
+        for (int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1)) {
+            if (i < 64) {
+                lowMask |= 1L << i;
+            } else {
+                highMask |= 1L << (i - 64);
+            }
+        }
+
+        return new SafeCharSet(lowMask, highMask);
+    }
+
+    /**
+     * @param c char to check
+     * @return true if c is in the set
+     */
+    public boolean contains(char c) {
+        if (c < 64) {
+            return (lowMask & (1L << c)) != 0;
+        }
+        if (c < 128) {
+            return (highMask & (1L << (c - 64))) != 0;
+        }
+
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SafeCharSet)) {
+            return false;
+        }
+
+        SafeCharSet that = (SafeCharSet) o;
+        return lowMask == that.lowMask && highMask == that.highMask;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (int) (lowMask ^ (lowMask >>> 32)) + (int) (highMask ^ (highMask >>> 32));
+    }
+}
@@ -4,18 +4,17 @@
 
 package com.palominolabs.http.url;
 
-import com.google.common.collect.Lists;
-import org.apache.commons.lang3.tuple.Pair;
-
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
 import java.net.URL;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.CharsetDecoder;
-import java.util.Iterator;
-import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.Locale;
 
 import static com.google.common.base.Charsets.UTF_8;
 import static com.palominolabs.http.url.UrlPercentEncoders.getFragmentEncoder;
@@ -33,40 +32,56 @@ import static com.palominolabs.http.url.UrlPercentEncoders.getRegNameEncoder;
 @NotThreadSafe
 public final class UrlBuilder {
 
-    /**
-     * IPv6 address, cribbed from http://stackoverflow.com/questions/46146/what-are-the-java-regular-expressions-for-matching-ipv4-and-ipv6-strings
-     */
-    private static final Pattern IPV6_PATTERN = Pattern
-        .compile(
-            "\\A\\[((?:[0-9A-Fa-f]{1,4}(?::[0-9A-Fa-f]{1,4})*)?)::((?:[0-9A-Fa-f]{1,4}(?::[0-9A-Fa-f]{1,4})*)?)]\\z");
-
-    /**
-     * IPv4 dotted quad
-     */
-    private static final Pattern IPV4_PATTERN = Pattern
-        .compile("\\A(25[0-5]|2[0-4]\\d|[0-1]?\\d?\\d)(\\.(25[0-5]|2[0-4]\\d|[0-1]?\\d?\\d)){3}\\z");
+    private static final Object[] EMPTY_OBJECTS = new Object[0];
+    private static final int[] EMPTY_INTS = new int[0];
 
     @Nonnull
-    private final String scheme;
+    private String scheme;
 
     @Nonnull
-    private final String host;
+    private String host;
 
     @Nullable
-    private final Integer port;
+    private Integer port;
+
+    /*
+     * Builder state is kept in flat arrays that are grown as needed and reused after reset(), so adding a path
+     * segment or param is just an array store. Each component is either a String, which is encoded when the url is
+     * built, or a PreEncoded, which is appended as-is.
+     */
+
+    /**
+     * Query param names and values, interleaved: name at 2i, value at 2i + 1
+     */
+    private Object[] queryParams = EMPTY_OBJECTS;
+    private int queryParamCount;
 
-    private final List<Pair<String, String>> queryParams = Lists.newArrayList();
+    private Object[] pathSegments = EMPTY_OBJECTS;
+    private int pathSegmentCount;
+
+    /**
+     * Matrix param names and values for all path segments, interleaved like queryParams
+     */
+    private Object[] matrixParams = EMPTY_OBJECTS;
+    private int matrixParamCount;
 
-    private final List<PathSegment> pathSegments = Lists.newArrayList();
+    /**
+     * For each path segment, the number of matrix params belonging to it and all preceding segments, so the params for
+     * segment i are [matrixParamsEnd[i - 1], matrixParamsEnd[i]).
+     */
+    private int[] matrixParamsEnd = EMPTY_INTS;
 
-    private final PercentEncoder pathEncoder = getPathEncoder();
-    private final PercentEncoder regNameEncoder = getRegNameEncoder();
-    private final PercentEncoder matrixEncoder = getMatrixEncoder();
-    private final PercentEncoder queryEncoder = getQueryEncoder();
-    private final PercentEncoder fragmentEncoder = getFragmentEncoder();
+    /**
+     * String or PreEncoded
+     */
+    @Nullable
+    private Object fragment;
 
+    /**
+     * Encoded host and port, computed on first use and kept until host or port change
+     */
     @Nullable
-    private String fragment;
+    private String encodedAuthority;
 
     private boolean forceTrailingSlash = false;
 
@@ -133,7 +148,219 @@ public final class UrlBuilder {
     @Nonnull
     public static UrlBuilder fromUrl(@Nonnull URL url, @Nonnull CharsetDecoder charsetDecoder) throws
         CharacterCodingException {
+        return fromUrl(url, charsetDecoder, QueryParsePolicy.STRICT);
+    }
 
+    /**
+     * Create a UrlBuilder initialized with the contents of a {@link URL}, with control over how forgiving query
+     * parsing is.
+     *
+     * @param url              url to initialize builder with
+     * @param charsetDecoder   the decoder to decode encoded bytes with (except for reg names, which are always UTF-8)
+     * @param queryParsePolicy how to handle query params that aren't simple name=value pairs
+     * @return a UrlBuilder containing the host, path, etc. from the url
+     * @throws CharacterCodingException if decoding percent-encoded bytes fails and charsetDecoder is configured to
+     *                                  report errors
+     */
+    @Nonnull
+    public static UrlBuilder fromUrl(@Nonnull URL url, @Nonnull CharsetDecoder charsetDecoder,
+        @Nonnull QueryParsePolicy queryParsePolicy) throws CharacterCodingException {
+
+        Integer port = url.getPort();
+        if (port == -1) {
+            port = null;
+        }
+
+        String path = url.getPath();
+        String query = url.getQuery();
+        String ref = url.getRef();
+
+        return build(url.getProtocol(), url.getHost(), port, path, 0, path.length(), query, 0,
+            query == null ? -1 : query.length(), ref, 0, ref == null ? -1 : ref.length(), charsetDecoder,
+            queryParsePolicy);
+    }
+
+    /**
+     * Calls {@link UrlBuilder#parse(CharSequence, CharsetDecoder)} with a UTF-8 CharsetDecoder.
+     *
+     * @param url url string to initialize builder with
+     * @return a UrlBuilder containing the host, path, etc. from the url
+     * @throws CharacterCodingException if char decoding fails
+     * @see UrlBuilder#parse(CharSequence, CharsetDecoder)
+     */
+    @Nonnull
+    public static UrlBuilder parse(@Nonnull CharSequence url) throws CharacterCodingException {
+        return parse(url, UTF_8.newDecoder());
+    }
+
+    /**
+     * Create a UrlBuilder initialized with the contents of a url string, as per {@link UrlBuilder#fromUrl(URL,
+     * CharsetDecoder)} but without creating a {@link URL} first. The url must be absolute and have a host; any user
+     * info is ignored.
+     *
+     * @param url            url string to initialize builder with
+     * @param charsetDecoder the decoder to decode encoded bytes with (except for reg names, which are always UTF-8)
+     * @return a UrlBuilder containing the host, path, etc. from the url
+     * @throws IllegalArgumentException if the url is malformed
+     * @throws CharacterCodingException if decoding percent-encoded bytes fails and charsetDecoder is configured to
+     *                                  report errors
+     */
+    @Nonnull
+    public static UrlBuilder parse(@Nonnull CharSequence url, @Nonnull CharsetDecoder charsetDecoder) throws
+        CharacterCodingException {
+        return parse(url, charsetDecoder, QueryParsePolicy.STRICT);
+    }
+
+    /**
+     * Create a UrlBuilder initialized with the contents of a url string, with control over how forgiving query parsing
+     * is.
+     *
+     * @param url              url string to initialize builder with
+     * @param charsetDecoder   the decoder to decode encoded bytes with (except for reg names, which are always UTF-8)
+     * @param queryParsePolicy how to handle query params that aren't simple name=value pairs
+     * @return a UrlBuilder containing the host, path, etc. from the url
+     * @throws IllegalArgumentException if the url is malformed
+     * @throws CharacterCodingException if decoding percent-encoded bytes fails and charsetDecoder is configured to
+     *                                  report errors
+     * @see UrlBuilder#parse(CharSequence, CharsetDecoder)
+     */
+    @Nonnull
+    public static UrlBuilder parse(@Nonnull CharSequence url, @Nonnull CharsetDecoder charsetDecoder,
+        @Nonnull QueryParsePolicy queryParsePolicy) throws CharacterCodingException {
+        // RFC 3986 S3: scheme ":" "//" authority path-abempty [ "?" query ] [ "#" fragment ]
+        int length = url.length();
+
+        int schemeEnd = 0;
+        while (schemeEnd < length && isSchemeChar(url.charAt(schemeEnd), schemeEnd == 0)) {
+            schemeEnd++;
+        }
+        if (schemeEnd == 0 || schemeEnd + 2 >= length || url.charAt(schemeEnd) != ':' ||
+            url.charAt(schemeEnd + 1) != '/' || url.charAt(schemeEnd + 2) != '/') {
+            throw new IllegalArgumentException("Not an absolute url with a host: <" + url + ">");
+        }
+
+        int authorityStart = schemeEnd + 3;
+        int pathStart = authorityStart;
+        int userInfoEnd = -1;
+        char c;
+        while (pathStart < length && (c = url.charAt(pathStart)) != '/' && c != '?' && c != '#') {
+            if (c == '@') {
+                userInfoEnd = pathStart;
+            }
+            pathStart++;
+        }
+
+        int hostStart = userInfoEnd == -1 ? authorityStart : userInfoEnd + 1;
+        int hostEnd = hostStart;
+        if (hostStart < pathStart && url.charAt(hostStart) == '[') {
+            while (hostEnd < pathStart && url.charAt(hostEnd) != ']') {
+                hostEnd++;
+            }
+            if (hostEnd == pathStart) {
+                throw new IllegalArgumentException("Unterminated IP literal in <" + url + ">");
+            }
+            hostEnd++;
+        } else {
+            while (hostEnd < pathStart && url.charAt(hostEnd) != ':') {
+                hostEnd++;
+            }
+        }
+        if (hostEnd == hostStart) {
+            throw new IllegalArgumentException("Not an absolute url with a host: <" + url + ">");
+        }
+
+        Integer port = null;
+        if (hostEnd < pathStart) {
+            if (url.charAt(hostEnd) != ':') {
+                throw new IllegalArgumentException("Invalid port in <" + url + ">");
+            }
+            port = parsePort(url, hostEnd + 1, pathStart);
+        }
+
+        int queryStart = -1;
+        int fragmentStart = -1;
+        int pathEnd = pathStart;
+        while (pathEnd < length && (c = url.charAt(pathEnd)) != '?' && c != '#') {
+            pathEnd++;
+        }
+        int queryEnd = pathEnd;
+        if (pathEnd < length && url.charAt(pathEnd) == '?') {
+            queryStart = pathEnd + 1;
+            queryEnd = queryStart;
+            while (queryEnd < length && url.charAt(queryEnd) != '#') {
+                queryEnd++;
+            }
+        }
+        if (queryEnd < length) {
+            fragmentStart = queryEnd + 1;
+        }
+
+        String scheme = url.subSequence(0, schemeEnd).toString().toLowerCase(Locale.ENGLISH);
+
+        return build(scheme, url.subSequence(hostStart, hostEnd), port, url, pathStart, pathEnd,
+            queryStart == -1 ? null : url, queryStart, queryEnd, fragmentStart == -1 ? null : url, fragmentStart,
+            length, charsetDecoder, queryParsePolicy);
+    }
+
+    /**
+     * @param c     char
+     * @param first true if c is the first char of the scheme
+     * @return true if c can be at that position in an RFC 3986 scheme
+     */
+    private static boolean isSchemeChar(char c, boolean first) {
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+            return true;
+        }
+
+        return !first && ((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.');
+    }
+
+    /**
+     * @param url   url
+     * @param start start of the port digits
+     * @param end   end of the port digits
+     * @return the port, or null if it's empty
+     */
+    @Nullable
+    private static Integer parsePort(CharSequence url, int start, int end) {
+        if (start == end) {
+            // RFC 3986 S3.2.3 allows an empty port
+            return null;
+        }
+
+        int port = 0;
+        for (int i = start; i < end; i++) {
+            char c = url.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Invalid port in <" + url + ">");
+            }
+            port = port * 10 + (c - '0');
+            if (port > 65535) {
+                throw new IllegalArgumentException("Invalid port in <" + url + ">");
+            }
+        }
+
+        return port;
+    }
+
+    /**
+     * Create a builder from the (still encoded) parts of a url.
+     *
+     * @param scheme         scheme
+     * @param host           encoded host
+     * @param port           port or null
+     * @param path           contains the encoded path in [pathStart, pathEnd)
+     * @param query          contains the encoded query in [queryStart, queryEnd), or null if there is no query
+     * @param fragment       contains the encoded fragment in [fragmentStart, fragmentEnd), or null if there is no
+     *                       fragment
+     * @param charsetDecoder the decoder to decode encoded bytes with (except for reg names, which are always UTF-8)
+     * @param policy         how to parse the query
+     * @return a UrlBuilder with the decoded parts
+     */
+    private static UrlBuilder build(String scheme, CharSequence host, @Nullable Integer port, CharSequence path,
+        int pathStart, int pathEnd, @Nullable CharSequence query, int queryStart, int queryEnd,
+        @Nullable CharSequence fragment, int fragmentStart, int fragmentEnd, CharsetDecoder charsetDecoder,
+        QueryParsePolicy policy) throws CharacterCodingException {
         PercentDecoder decoder = new PercentDecoder(charsetDecoder);
         // reg names must be encoded UTF-8
         PercentDecoder regNameDecoder;
@@ -143,19 +370,20 @@ public final class UrlBuilder {
             regNameDecoder = new PercentDecoder(UTF_8.newDecoder());
         }
 
-        Integer port = url.getPort();
-        if (port == -1) {
-            port = null;
-        }
-
-        UrlBuilder builder = new UrlBuilder(url.getProtocol(), regNameDecoder.decode(url.getHost()), port);
+        UrlBuilder builder = new UrlBuilder(scheme, regNameDecoder.decode(host), port);
 
-        buildFromPath(builder, decoder, url);
+        buildFromPath(builder, decoder, path, pathStart, pathEnd);
 
-        buildFromQuery(builder, decoder, url);
+        if (query != null) {
+            if (policy.isLenient()) {
+                buildFromQueryLeniently(builder, decoder, query, queryStart, queryEnd, policy.isPlusAsSpace());
+            } else {
+                buildFromQuery(builder, decoder, query, queryStart, queryEnd);
+            }
+        }
 
-        if (url.getRef() != null) {
-            builder.fragment(decoder.decode(url.getRef()));
+        if (fragment != null) {
+            builder.fragment(decoder.decode(fragment, fragmentStart, fragmentEnd));
         }
 
         return builder;
@@ -169,7 +397,47 @@ public final class UrlBuilder {
      */
     @Nonnull
     public UrlBuilder pathSegment(@Nonnull String segment) {
-        pathSegments.add(new PathSegment(segment));
+        return addPathSegment(segment);
+    }
+
+    /**
+     * Add a path segment that has already been encoded, e.g. a constant.
+     *
+     * @param segment a path segment from {@link PreEncoded#pathSegment(String)}
+     * @return this
+     * @throws IllegalArgumentException if segment was encoded as some other component
+     */
+    @Nonnull
+    public UrlBuilder pathSegment(@Nonnull PreEncoded segment) {
+        return addPathSegment(segment.checkEncoder(getPathEncoder(), "path segment"));
+    }
+
+    /**
+     * Add a path segment that is already percent-encoded. It will be used as-is, so it must not contain any chars that
+     * are unsafe in a path segment other than as %-pairs; this is only checked when assertions are enabled.
+     *
+     * @param encodedSegment an encoded path segment
+     * @return this
+     */
+    @Nonnull
+    public UrlBuilder pathSegmentEncoded(@Nonnull String encodedSegment) {
+        return addPathSegment(preEncoded(encodedSegment, getPathEncoder(), "path segment"));
+    }
+
+    /**
+     * @param segment String or PreEncoded
+     * @return this
+     */
+    private UrlBuilder addPathSegment(Object segment) {
+        if (pathSegmentCount == pathSegments.length) {
+            int newLength = Math.max(4, pathSegmentCount * 2);
+            pathSegments = Arrays.copyOf(pathSegments, newLength);
+            matrixParamsEnd = Arrays.copyOf(matrixParamsEnd, newLength);
+        }
+
+        pathSegments[pathSegmentCount] = segment;
+        matrixParamsEnd[pathSegmentCount] = matrixParamCount;
+        pathSegmentCount++;
         return this;
     }
 
@@ -197,7 +465,64 @@ public final class UrlBuilder {
      */
     @Nonnull
     public UrlBuilder queryParam(@Nonnull String name, @Nonnull String value) {
-        queryParams.add(Pair.of(name, value));
+        return addQueryParam(name, value);
+    }
+
+    /**
+     * Add a query parameter with an already encoded name, e.g. a constant.
+     *
+     * @param name  param name from {@link PreEncoded#queryParam(String)}
+     * @param value param value
+     * @return this
+     * @throws IllegalArgumentException if name was encoded as some other component
+     */
+    @Nonnull
+    public UrlBuilder queryParam(@Nonnull PreEncoded name, @Nonnull String value) {
+        return addQueryParam(name.checkEncoder(getQueryEncoder(), "query param"), value);
+    }
+
+    /**
+     * Add a query parameter with an already encoded name and value.
+     *
+     * @param name  param name from {@link PreEncoded#queryParam(String)}
+     * @param value param value from {@link PreEncoded#queryParam(String)}
+     * @return this
+     * @throws IllegalArgumentException if name or value was encoded as some other component
+     */
+    @Nonnull
+    public UrlBuilder queryParam(@Nonnull PreEncoded name, @Nonnull PreEncoded value) {
+        return addQueryParam(name.checkEncoder(getQueryEncoder(), "query param"),
+            value.checkEncoder(getQueryEncoder(), "query param"));
+    }
+
+    /**
+     * Add a query parameter whose name and value are already percent-encoded. They will be used as-is, so they must not
+     * contain any chars that are unsafe in a query param other than as %-pairs; this is only checked when assertions
+     * are enabled.
+     *
+     * @param encodedName  encoded param name
+     * @param encodedValue encoded param value
+     * @return this
+     */
+    @Nonnull
+    public UrlBuilder queryParamEncoded(@Nonnull String encodedName, @Nonnull String encodedValue) {
+        return addQueryParam(preEncoded(encodedName, getQueryEncoder(), "query param"),
+            preEncoded(encodedValue, getQueryEncoder(), "query param"));
+    }
+
+    /**
+     * @param name  String or PreEncoded
+     * @param value String or PreEncoded
+     * @return this
+     */
+    private UrlBuilder addQueryParam(Object name, Object value) {
+        if (2 * queryParamCount == queryParams.length) {
+            queryParams = Arrays.copyOf(queryParams, Math.max(8, queryParams.length * 2));
+        }
+
+        queryParams[2 * queryParamCount] = name;
+        queryParams[2 * queryParamCount + 1] = value;
+        queryParamCount++;
         return this;
     }
 
@@ -211,13 +536,73 @@ public final class UrlBuilder {
      */
     @Nonnull
     public UrlBuilder matrixParam(@Nonnull String name, @Nonnull String value) {
-        if (pathSegments.isEmpty()) {
+        return addMatrixParam(name, value);
+    }
+
+    /**
+     * Add a matrix param with an already encoded name, e.g. a constant, as per {@link UrlBuilder#matrixParam(String,
+     * String)}.
+     *
+     * @param name  param name from {@link PreEncoded#matrixParam(String)}
+     * @param value param value
+     * @return this
+     * @throws IllegalArgumentException if name was encoded as some other component
+     */
+    @Nonnull
+    public UrlBuilder matrixParam(@Nonnull PreEncoded name, @Nonnull String value) {
+        return addMatrixParam(name.checkEncoder(getMatrixEncoder(), "matrix param"), value);
+    }
+
+    /**
+     * Add a matrix param with an already encoded name and value, as per {@link UrlBuilder#matrixParam(String,
+     * String)}.
+     *
+     * @param name  param name from {@link PreEncoded#matrixParam(String)}
+     * @param value param value from {@link PreEncoded#matrixParam(String)}
+     * @return this
+     * @throws IllegalArgumentException if name or value was encoded as some other component
+     */
+    @Nonnull
+    public UrlBuilder matrixParam(@Nonnull PreEncoded name, @Nonnull PreEncoded value) {
+        return addMatrixParam(name.checkEncoder(getMatrixEncoder(), "matrix param"),
+            value.checkEncoder(getMatrixEncoder(), "matrix param"));
+    }
+
+    /**
+     * Add a matrix param whose name and value are already percent-encoded, as per {@link
+     * UrlBuilder#matrixParam(String, String)}. They will be used as-is, so they must not contain any chars that are
+     * unsafe in a matrix param other than as %-pairs; this is only checked when assertions are enabled.
+     *
+     * @param encodedName  encoded param name
+     * @param encodedValue encoded param value
+     * @return this
+     */
+    @Nonnull
+    public UrlBuilder matrixParamEncoded(@Nonnull String encodedName, @Nonnull String encodedValue) {
+        return addMatrixParam(preEncoded(encodedName, getMatrixEncoder(), "matrix param"),
+            preEncoded(encodedValue, getMatrixEncoder(), "matrix param"));
+    }
+
+    /**
+     * @param name  String or PreEncoded
+     * @param value String or PreEncoded
+     * @return this
+     */
+    private UrlBuilder addMatrixParam(Object name, Object value) {
+        if (pathSegmentCount == 0) {
             // create an empty path segment to represent a matrix param applied to the root
             pathSegment("");
         }
 
-        PathSegment seg = pathSegments.get(pathSegments.size() - 1);
-        seg.matrixParams.add(Pair.of(name, value));
+        if (2 * matrixParamCount == matrixParams.length) {
+            matrixParams = Arrays.copyOf(matrixParams, Math.max(4, matrixParams.length * 2));
+        }
+
+        // params always go on the last segment, which is also the end of the array
+        matrixParams[2 * matrixParamCount] = name;
+        matrixParams[2 * matrixParamCount + 1] = value;
+        matrixParamCount++;
+        matrixParamsEnd[pathSegmentCount - 1] = matrixParamCount;
         return this;
     }
 
@@ -233,6 +618,43 @@ public final class UrlBuilder {
         return this;
     }
 
+    /**
+     * Set the fragment to one that has already been encoded, e.g. a constant.
+     *
+     * @param fragment fragment from {@link PreEncoded#fragment(String)}
+     * @return this
+     * @throws IllegalArgumentException if fragment was encoded as some other component
+     */
+    @Nonnull
+    public UrlBuilder fragment(@Nonnull PreEncoded fragment) {
+        this.fragment = fragment.checkEncoder(getFragmentEncoder(), "fragment");
+        return this;
+    }
+
+    /**
+     * Set the fragment to one that is already percent-encoded. It will be used as-is, so it must not contain any chars
+     * that are unsafe in a fragment other than as %-pairs; this is only checked when assertions are enabled.
+     *
+     * @param encodedFragment encoded fragment
+     * @return this
+     */
+    @Nonnull
+    public UrlBuilder fragmentEncoded(@Nonnull String encodedFragment) {
+        this.fragment = preEncoded(encodedFragment, getFragmentEncoder(), "fragment");
+        return this;
+    }
+
+    /**
+     * @param encoded   text that the caller says is already encoded
+     * @param encoder   the encoder for the component it will be used as
+     * @param component name of the component for the error message
+     * @return encoded, wrapped so it will be appended as-is
+     */
+    private static PreEncoded preEncoded(String encoded, PercentEncoder encoder, String component) {
+        assert encoder.isEncoded(encoded) : "<" + encoded + "> is not a valid encoded " + component;
+        return new PreEncoded(encoded, encoder);
+    }
+
     /**
      * Force the generated URL to have a trailing slash at the end of the path.
      *
@@ -244,6 +666,65 @@ public final class UrlBuilder {
         return this;
     }
 
+    /**
+     * Clear the path segments, matrix params, query params, fragment and forced trailing slash, keeping the scheme, host
+     * and port. The internal storage is kept, so a builder can be reused (e.g. one per thread) to build many URLs.
+     *
+     * @return this
+     */
+    @Nonnull
+    public UrlBuilder reset() {
+        // null out references so that old strings can be collected, but keep the arrays
+        Arrays.fill(pathSegments, 0, pathSegmentCount, null);
+        Arrays.fill(matrixParams, 0, 2 * matrixParamCount, null);
+        Arrays.fill(queryParams, 0, 2 * queryParamCount, null);
+        pathSegmentCount = 0;
+        matrixParamCount = 0;
+        queryParamCount = 0;
+        fragment = null;
+        forceTrailingSlash = false;
+        return this;
+    }
+
+    /**
+     * Clear everything as per {@link UrlBuilder#reset()}, and switch to a new scheme and host with a null port.
+     *
+     * @param scheme scheme (e.g. http)
+     * @param host   host in any of the valid syntaxes: reg-name ( a dns name), ipv4 literal (1.2.3.4), ipv6 literal
+     *               ([::1]), excluding IPvFuture since no one uses that in practice
+     * @return this
+     */
+    @Nonnull
+    public UrlBuilder reset(@Nonnull String scheme, @Nonnull String host) {
+        return reset(scheme, host, null);
+    }
+
+    /**
+     * Clear everything as per {@link UrlBuilder#reset()}, and switch to a new scheme, host and port.
+     *
+     * @param scheme scheme (e.g. http)
+     * @param host   host in any of the valid syntaxes: reg-name ( a dns name), ipv4 literal (1.2.3.4), ipv6 literal
+     *               ([::1]), excluding IPvFuture since no one uses that in practice
+     * @param port   port
+     * @return this
+     */
+    @Nonnull
+    public UrlBuilder reset(@Nonnull String scheme, @Nonnull String host, int port) {
+        return reset(scheme, host, Integer.valueOf(port));
+    }
+
+    private UrlBuilder reset(String scheme, String host, Integer port) {
+        if (!host.equals(this.host) || (port == null ? this.port != null : !port.equals(this.port))) {
+            // the encoded authority is still good if a pooled builder is reused for the same host
+            encodedAuthority = null;
+        }
+
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        return reset();
+    }
+
     /**
      * Encode the current builder state into a URL string.
      *
@@ -251,157 +732,548 @@ public final class UrlBuilder {
      * @throws CharacterCodingException if character encoding fails and the encoder is configured to report errors
      */
     public String toUrlString() throws CharacterCodingException {
-        StringBuilder buf = new StringBuilder();
+        String authority = getEncodedAuthority();
+        StringBuilder buf = new StringBuilder(encodedLength(authority));
+        appendUrl(buf, authority);
+        return buf.toString();
+    }
+
+    /**
+     * Encode the current builder state into a URL string, appending it to output.
+     *
+     * @param output where the URL string will be appended
+     * @throws IOException if output throws, or if character encoding fails and the encoder is configured to report
+     *                     errors
+     */
+    public void appendTo(@Nonnull Appendable output) throws IOException {
+        String authority = getEncodedAuthority();
+        if (output instanceof StringBuilder) {
+            StringBuilder buf = (StringBuilder) output;
+            buf.ensureCapacity(buf.length() + encodedLength(authority));
+            appendUrl(buf, authority);
+            return;
+        }
 
+        StringBuilder buf = new StringBuilder(encodedLength(authority));
+        appendUrl(buf, authority);
+        output.append(buf);
+    }
+
+    /**
+     * Encode just the path (including matrix params) and query of the current builder state, as used in the origin-form
+     * request target of an HTTP request line. The path is "/" if there are no path segments.
+     *
+     * @return path and query string
+     * @throws CharacterCodingException if character encoding fails and the encoder is configured to report errors
+     */
+    public String toPathAndQueryString() throws CharacterCodingException {
+        StringBuilder buf = new StringBuilder(Math.max(1, pathAndQueryLength()));
+        appendPathAndQuery(buf);
+        return buf.toString();
+    }
+
+    /**
+     * Encode just the path (including matrix params) and query of the current builder state, appending it to output.
+     *
+     * @param output where the path and query will be appended
+     * @throws IOException if output throws, or if character encoding fails and the encoder is configured to report
+     *                     errors
+     * @see UrlBuilder#toPathAndQueryString()
+     */
+    public void appendPathAndQueryTo(@Nonnull Appendable output) throws IOException {
+        if (output instanceof StringBuilder) {
+            StringBuilder buf = (StringBuilder) output;
+            buf.ensureCapacity(buf.length() + Math.max(1, pathAndQueryLength()));
+            appendPathAndQuery(buf);
+            return;
+        }
+
+        output.append(toPathAndQueryString());
+    }
+
+    /**
+     * @param buf       where the whole URL will be appended
+     * @param authority the already encoded host and port
+     */
+    private void appendUrl(StringBuilder buf, String authority) throws CharacterCodingException {
         buf.append(scheme);
         buf.append("://");
+        buf.append(authority);
+
+        appendPath(buf);
+        appendQuery(buf);
 
-        buf.append(encodeHost(host));
-        if (port != null) {
-            buf.append(':');
-            buf.append(port);
+        if (fragment != null) {
+            buf.append('#');
+            appendComponent(buf, getFragmentEncoder(), fragment);
         }
+    }
 
-        for (PathSegment pathSegment : pathSegments) {
+    /**
+     * @param buf where the path, or "/" if it's empty, and query will be appended
+     */
+    private void appendPathAndQuery(StringBuilder buf) throws CharacterCodingException {
+        int pathStart = buf.length();
+        appendPath(buf);
+        if (buf.length() == pathStart) {
             buf.append('/');
-            buf.append(pathEncoder.encode(pathSegment.segment));
+        }
+
+        appendQuery(buf);
+    }
 
-            for (Pair<String, String> matrixParam : pathSegment.matrixParams) {
+    /**
+     * @param buf where the path, including matrix params and any forced trailing slash, will be appended
+     */
+    private void appendPath(StringBuilder buf) throws CharacterCodingException {
+        // encoders are only looked up for the parts of the url that are actually present
+        int matrixParam = 0;
+        for (int i = 0; i < pathSegmentCount; i++) {
+            buf.append('/');
+            appendComponent(buf, getPathEncoder(), pathSegments[i]);
+
+            for (; matrixParam < matrixParamsEnd[i]; matrixParam++) {
+                PercentEncoder matrixEncoder = getMatrixEncoder();
                 buf.append(';');
-                buf.append(matrixEncoder.encode(matrixParam.getKey()));
+                appendComponent(buf, matrixEncoder, matrixParams[2 * matrixParam]);
                 buf.append('=');
-                buf.append(matrixEncoder.encode(matrixParam.getValue()));
+                appendComponent(buf, matrixEncoder, matrixParams[2 * matrixParam + 1]);
             }
         }
 
         if (forceTrailingSlash) {
             buf.append('/');
         }
+    }
 
-        if (!queryParams.isEmpty()) {
+    /**
+     * @param buf where the query, including the leading '?', will be appended if there are any query params
+     */
+    private void appendQuery(StringBuilder buf) throws CharacterCodingException {
+        if (queryParamCount > 0) {
+            PercentEncoder queryEncoder = getQueryEncoder();
             buf.append("?");
-            Iterator<Pair<String, String>> qpIter = queryParams.iterator();
-            while (qpIter.hasNext()) {
-                Pair<String, String> queryParam = qpIter.next();
-                buf.append(queryEncoder.encode(queryParam.getKey()));
-                buf.append('=');
-                buf.append(queryEncoder.encode(queryParam.getValue()));
-                if (qpIter.hasNext()) {
+            for (int i = 0; i < queryParamCount; i++) {
+                if (i > 0) {
                     buf.append('&');
                 }
+                appendComponent(buf, queryEncoder, queryParams[2 * i]);
+                buf.append('=');
+                appendComponent(buf, queryEncoder, queryParams[2 * i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Write the URL for the current builder state as US-ASCII bytes, e.g. into a buffer for an HTTP request, without
+     * creating a String first.
+     *
+     * @param output where the URL will be written, starting at its position
+     * @throws BufferOverflowException  if output has less than {@link UrlBuilder#encodedLength()} bytes remaining, in
+     *                                  which case nothing is written
+     * @throws CharacterCodingException if character encoding fails and the encoder is configured to report errors
+     */
+    public void writeTo(@Nonnull ByteBuffer output) throws CharacterCodingException {
+        String authority = getEncodedAuthority();
+        if (encodedLength(authority) > output.remaining()) {
+            throw new BufferOverflowException();
+        }
+
+        putAscii(output, scheme);
+        putAscii(output, "://");
+        putAscii(output, authority);
+
+        int matrixParam = 0;
+        for (int i = 0; i < pathSegmentCount; i++) {
+            output.put((byte) '/');
+            putComponent(output, getPathEncoder(), pathSegments[i]);
+
+            for (; matrixParam < matrixParamsEnd[i]; matrixParam++) {
+                PercentEncoder matrixEncoder = getMatrixEncoder();
+                output.put((byte) ';');
+                putComponent(output, matrixEncoder, matrixParams[2 * matrixParam]);
+                output.put((byte) '=');
+                putComponent(output, matrixEncoder, matrixParams[2 * matrixParam + 1]);
+            }
+        }
+
+        if (forceTrailingSlash) {
+            output.put((byte) '/');
+        }
+
+        if (queryParamCount > 0) {
+            PercentEncoder queryEncoder = getQueryEncoder();
+            output.put((byte) '?');
+            for (int i = 0; i < queryParamCount; i++) {
+                if (i > 0) {
+                    output.put((byte) '&');
+                }
+                putComponent(output, queryEncoder, queryParams[2 * i]);
+                output.put((byte) '=');
+                putComponent(output, queryEncoder, queryParams[2 * i + 1]);
             }
         }
 
         if (fragment != null) {
-            buf.append('#');
-            buf.append(fragmentEncoder.encode(fragment));
+            output.put((byte) '#');
+            putComponent(output, getFragmentEncoder(), fragment);
         }
+    }
 
-        return buf.toString();
+    /**
+     * Write the URL for the current builder state as US-ASCII bytes.
+     *
+     * @param output where the URL will be written
+     * @param offset index in output to start writing at
+     * @return the index in output after the last byte written
+     * @throws BufferOverflowException  if output doesn't have {@link UrlBuilder#encodedLength()} bytes after offset, in
+     *                                  which case nothing is written
+     * @throws CharacterCodingException if character encoding fails and the encoder is configured to report errors
+     * @see UrlBuilder#writeTo(ByteBuffer)
+     */
+    public int writeTo(@Nonnull byte[] output, int offset) throws CharacterCodingException {
+        ByteBuffer buf = ByteBuffer.wrap(output, offset, output.length - offset);
+        writeTo(buf);
+        return buf.position();
+    }
+
+    /**
+     * @return the length of the URL for the current builder state, in chars for {@link UrlBuilder#toUrlString()} or
+     * bytes for {@link UrlBuilder#writeTo(ByteBuffer)}
+     * @throws CharacterCodingException if character encoding fails and the encoder is configured to report errors
+     */
+    public int encodedLength() throws CharacterCodingException {
+        return encodedLength(getEncodedAuthority());
     }
 
+    /**
+     * @param buf       where the encoded component will be appended
+     * @param encoder   encoder for the component
+     * @param component String to encode, or PreEncoded to append as-is
+     */
+    private static void appendComponent(StringBuilder buf, PercentEncoder encoder, Object component) throws
+        CharacterCodingException {
+        if (component instanceof PreEncoded) {
+            buf.append(((PreEncoded) component).getEncoded());
+        } else {
+            encoder.encode((String) component, buf);
+        }
+    }
+
+    /**
+     * @param output    where the encoded component will be written
+     * @param encoder   encoder for the component
+     * @param component String to encode, or PreEncoded to write as-is
+     */
+    private static void putComponent(ByteBuffer output, PercentEncoder encoder, Object component) throws
+        CharacterCodingException {
+        if (component instanceof PreEncoded) {
+            putAscii(output, ((PreEncoded) component).getEncoded());
+        } else {
+            encoder.putEncoded((String) component, output);
+        }
+    }
+
+    /**
+     * @param encoder   encoder for the component
+     * @param component String to encode, or PreEncoded
+     * @return the length of the encoded component
+     */
+    private static int componentLength(PercentEncoder encoder, Object component) throws CharacterCodingException {
+        if (component instanceof PreEncoded) {
+            return ((PreEncoded) component).getEncoded().length();
+        }
+
+        return encoder.encodedLength((String) component);
+    }
+
+    /**
+     * @param output where the chars will be written
+     * @param s      ascii chars
+     */
+    private static void putAscii(ByteBuffer output, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            output.put((byte) s.charAt(i));
+        }
+    }
+
+    /**
+     * @param encodedAuthority the already encoded host and port
+     * @return the exact length of the url string for the current builder state, so it can be built without resizing
+     * @throws CharacterCodingException if character encoding fails and the encoder is configured to report errors
+     */
+    private int encodedLength(String encodedAuthority) throws CharacterCodingException {
+        int length = scheme.length() + "://".length() + encodedAuthority.length() + pathAndQueryLength();
+
+        if (fragment != null) {
+            length += 1 + componentLength(getFragmentEncoder(), fragment);
+        }
+
+        return length;
+    }
+
+    /**
+     * @return the exact length of the path and query, as they appear in the full url string (so an empty path is
+     * empty, not "/")
+     * @throws CharacterCodingException if character encoding fails and the encoder is configured to report errors
+     */
+    private int pathAndQueryLength() throws CharacterCodingException {
+        int length = 0;
+
+        for (int i = 0; i < pathSegmentCount; i++) {
+            length += 1 + componentLength(getPathEncoder(), pathSegments[i]);
+        }
+
+        if (matrixParamCount > 0) {
+            PercentEncoder matrixEncoder = getMatrixEncoder();
+            for (int i = 0; i < 2 * matrixParamCount; i++) {
+                length += 1 + componentLength(matrixEncoder, matrixParams[i]);
+            }
+        }
+
+        if (forceTrailingSlash) {
+            length++;
+        }
+
+        if (queryParamCount > 0) {
+            PercentEncoder queryEncoder = getQueryEncoder();
+            // '?' or '&' before each name, '=' before each value
+            for (int i = 0; i < 2 * queryParamCount; i++) {
+                length += 1 + componentLength(queryEncoder, queryParams[i]);
+            }
+        }
+
+        return length;
+    }
+
+    /*
+     * The url is populated by scanning for delimiters and decoding each part straight out of the url, rather than
+     * splitting it into strings first. Pieces are found the same way String.split() would find them, so trailing empty
+     * pieces are ignored (e.g. "foo;" is just the segment "foo").
+     */
+
     /**
      * Populate a url builder based on the query of a url
      *
      * @param builder builder
      * @param decoder decoder
-     * @param url     url
+     * @param q       contains the encoded query in [start, end)
+     * @param start   start of the query
+     * @param end     end of the query
      * @throws CharacterCodingException
      */
-    private static void buildFromQuery(UrlBuilder builder, PercentDecoder decoder, URL url) throws
-        CharacterCodingException {
-        if (url.getQuery() != null) {
-            String q = url.getQuery();
+    private static void buildFromQuery(UrlBuilder builder, PercentDecoder decoder, CharSequence q, int start, int end)
+        throws CharacterCodingException {
+        if (start == end) {
+            buildFromQueryParamChunk(builder, decoder, q, start, end);
+            return;
+        }
 
-            for (String queryChunk : q.split("&")) {
-                String[] queryParamChunks = queryChunk.split("=");
+        end = trimTrailing(q, start, end, '&');
+        int chunkStart = start;
+        while (chunkStart < end) {
+            int chunkEnd = indexOf(q, '&', chunkStart, end);
+            buildFromQueryParamChunk(builder, decoder, q, chunkStart, chunkEnd);
+            chunkStart = chunkEnd + 1;
+        }
+    }
 
-                if (queryParamChunks.length != 2) {
-                    throw new IllegalArgumentException("Malformed query param: <" + queryChunk + ">");
-                }
+    private static void buildFromQueryParamChunk(UrlBuilder builder, PercentDecoder decoder, CharSequence q,
+        int start, int end) throws CharacterCodingException {
+        int pairEnd = trimTrailing(q, start, end, '=');
+        int eq = indexOf(q, '=', start, pairEnd);
+        if (eq == pairEnd || indexOf(q, '=', eq + 1, pairEnd) != pairEnd) {
+            throw new IllegalArgumentException("Malformed query param: <" + q.subSequence(start, end) + ">");
+        }
 
-                builder.queryParam(decoder.decode(queryParamChunks[0]), decoder.decode(queryParamChunks[1]));
+        builder.queryParam(decoder.decode(q, start, eq), decoder.decode(q, eq + 1, pairEnd));
+    }
+
+    /**
+     * Populate a url builder based on the query of a url as per {@link QueryParsePolicy#LENIENT}
+     *
+     * @param builder     builder
+     * @param decoder     decoder
+     * @param q           contains the encoded query in [start, end)
+     * @param start       start of the query
+     * @param end         end of the query
+     * @param plusAsSpace true if '+' should be decoded as ' '
+     * @throws CharacterCodingException
+     */
+    private static void buildFromQueryLeniently(UrlBuilder builder, PercentDecoder decoder, CharSequence q, int start,
+        int end, boolean plusAsSpace) throws CharacterCodingException {
+        int chunkStart = start;
+        while (chunkStart < end) {
+            int chunkEnd = indexOf(q, '&', chunkStart, end);
+            if (chunkEnd > chunkStart) {
+                // the value is everything after the first '=', or empty if there isn't one
+                int eq = indexOf(q, '=', chunkStart, chunkEnd);
+                String name = decodeQueryPart(decoder, q, chunkStart, eq, plusAsSpace);
+                String value = eq == chunkEnd ? "" : decodeQueryPart(decoder, q, eq + 1, chunkEnd, plusAsSpace);
+                builder.queryParam(name, value);
             }
+
+            chunkStart = chunkEnd + 1;
         }
     }
 
+    /**
+     * @param decoder     decoder
+     * @param q           query
+     * @param start       start of the encoded name or value
+     * @param end         end of the encoded name or value
+     * @param plusAsSpace true if '+' should be decoded as ' '
+     * @return decoded name or value
+     */
+    private static String decodeQueryPart(PercentDecoder decoder, CharSequence q, int start, int end,
+        boolean plusAsSpace) throws CharacterCodingException {
+        if (!plusAsSpace || indexOf(q, '+', start, end) == end) {
+            return decoder.decode(q, start, end);
+        }
+
+        // replace before percent-decoding so that "%2B" is still '+'
+        StringBuilder buf = new StringBuilder(end - start);
+        buf.append(q, start, end);
+        for (int i = 0; i < buf.length(); i++) {
+            if (buf.charAt(i) == '+') {
+                buf.setCharAt(i, ' ');
+            }
+        }
+
+        return decoder.decode(buf);
+    }
+
     /**
      * Populate the path segments of a url builder from a url
      *
      * @param builder builder
      * @param decoder decoder
-     * @param url     url
+     * @param path    contains the encoded path in [start, end)
+     * @param start   start of the path
+     * @param end     end of the path
      * @throws CharacterCodingException
      */
-    private static void buildFromPath(UrlBuilder builder, PercentDecoder decoder, URL url) throws
-        CharacterCodingException {
-        for (String pathChunk : url.getPath().split("/")) {
-            if (pathChunk.equals("")) {
+    private static void buildFromPath(UrlBuilder builder, PercentDecoder decoder, CharSequence path, int start,
+        int end) throws CharacterCodingException {
+        int chunkStart = start;
+        while (chunkStart < end) {
+            int chunkEnd = indexOf(path, '/', chunkStart, end);
+            if (chunkEnd == chunkStart) {
+                chunkStart++;
                 continue;
             }
 
-            if (pathChunk.charAt(0) == ';') {
+            if (path.charAt(chunkStart) == ';') {
                 builder.pathSegment("");
                 // empty path segment, but matrix params
-                for (String matrixChunk : pathChunk.substring(1).split(";")) {
-                    buildFromMatrixParamChunk(decoder, builder, matrixChunk);
+                if (chunkStart + 1 == chunkEnd) {
+                    buildFromMatrixParamChunk(decoder, builder, path, chunkEnd, chunkEnd);
+                } else {
+                    buildFromMatrixParams(decoder, builder, path, chunkStart + 1,
+                        trimTrailing(path, chunkStart + 1, chunkEnd, ';'));
                 }
+            } else {
+                // otherwise, path chunk is non empty and does not start with a ';'
 
-                continue;
+                // first chunk is always the path segment. If there is a trailing ; and no matrix params, the ; will
+                // not be included in the final url.
+                int matrixEnd = trimTrailing(path, chunkStart, chunkEnd, ';');
+                int segmentEnd = indexOf(path, ';', chunkStart, matrixEnd);
+                builder.pathSegment(decoder.decode(path, chunkStart, segmentEnd));
+
+                // if there any other chunks, they're matrix param pairs
+                buildFromMatrixParams(decoder, builder, path, segmentEnd + 1, matrixEnd);
             }
 
-            // otherwise, path chunk is non empty and does not start with a ';'
+            chunkStart = chunkEnd + 1;
+        }
+    }
+
+    /**
+     * @param path  contains ';'-separated matrix params in [start, end), with no trailing ';'
+     * @param start start of the first param
+     * @param end   end of the last param
+     */
+    private static void buildFromMatrixParams(PercentDecoder decoder, UrlBuilder ub, CharSequence path, int start,
+        int end) throws CharacterCodingException {
+        int chunkStart = start;
+        while (chunkStart < end) {
+            int chunkEnd = indexOf(path, ';', chunkStart, end);
+            buildFromMatrixParamChunk(decoder, ub, path, chunkStart, chunkEnd);
+            chunkStart = chunkEnd + 1;
+        }
+    }
 
-            String[] matrixChunks = pathChunk.split(";");
+    private static void buildFromMatrixParamChunk(PercentDecoder decoder, UrlBuilder ub, CharSequence path,
+        int start, int end) throws CharacterCodingException {
+        int pairEnd = trimTrailing(path, start, end, '=');
+        int eq = indexOf(path, '=', start, pairEnd);
+        if (eq == pairEnd || indexOf(path, '=', eq + 1, pairEnd) != pairEnd) {
+            throw new IllegalArgumentException(
+                "Malformed matrix param: <" + path.subSequence(start, end) + ">");
+        }
 
-            // first chunk is always the path segment. If there is a trailing ; and no matrix params, the ; will
-            // not be included in the final url.
-            builder.pathSegment(decoder.decode(matrixChunks[0]));
+        ub.matrixParam(decoder.decode(path, start, eq), decoder.decode(path, eq + 1, pairEnd));
+    }
 
-            // if there any other chunks, they're matrix param pairs
-            for (int i = 1; i < matrixChunks.length; i++) {
-                buildFromMatrixParamChunk(decoder, builder, matrixChunks[i]);
+    /**
+     * @param s     chars to search
+     * @param c     char to find
+     * @param start index to start looking at
+     * @param end   index to stop looking at
+     * @return index of the first c in [start, end), or end if there is none
+     */
+    private static int indexOf(CharSequence s, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == c) {
+                return i;
             }
         }
+
+        return end;
     }
 
-    private static void buildFromMatrixParamChunk(PercentDecoder decoder, UrlBuilder ub, String pathMatrixChunk) throws
-        CharacterCodingException {
-        String[] mtxPair = pathMatrixChunk.split("=");
-        if (mtxPair.length != 2) {
-            throw new IllegalArgumentException(
-                "Malformed matrix param: <" + pathMatrixChunk + ">");
+    /**
+     * @param s     chars
+     * @param start start index
+     * @param end   end index
+     * @param c     char to trim
+     * @return end, moved back past any trailing c's (but not before start)
+     */
+    private static int trimTrailing(CharSequence s, int start, int end, char c) {
+        while (end > start && s.charAt(end - 1) == c) {
+            end--;
         }
 
-        String mtxName = mtxPair[0];
-        String mtxVal = mtxPair[1];
-        ub.matrixParam(decoder.decode(mtxName), decoder.decode(mtxVal));
+        return end;
     }
 
     /**
-     * @param host original host string
-     * @return host encoded as in RFC 3986 section 3.2.2
+     * @return the encoded host, followed by ':' and the port if there is one
+     * @throws CharacterCodingException if character encoding fails and the encoder is configured to report errors
      */
     @Nonnull
-    private String encodeHost(String host) throws CharacterCodingException {
-        // matching order: IP-literal, IPv4, reg-name
-        if (IPV4_PATTERN.matcher(host).matches() || IPV6_PATTERN.matcher(host).matches()) {
-            return host;
+    private String getEncodedAuthority() throws CharacterCodingException {
+        if (encodedAuthority == null) {
+            String encodedHost = encodeHost(host);
+            encodedAuthority = port == null ? encodedHost : encodedHost + ':' + port;
         }
 
-        // it's a reg-name, which MUST be encoded as UTF-8 (regardless of the rest of the URL)
-        return regNameEncoder.encode(host);
+        return encodedAuthority;
     }
 
     /**
-     * Bundle of a path segment name and any associated matrix params.
+     * @param host original host string
+     * @return host encoded as in RFC 3986 section 3.2.2
      */
-    private static class PathSegment {
-        private final String segment;
-        private final List<Pair<String, String>> matrixParams = Lists.newArrayList();
-
-        PathSegment(String segment) {
-            this.segment = segment;
+    @Nonnull
+    static String encodeHost(@Nonnull String host) throws CharacterCodingException {
+        // matching order: IP-literal, IPv4, reg-name
+        if (HostClassifier.isIpLiteral(host)) {
+            return host;
         }
+
+        // it's a reg-name, which MUST be encoded as UTF-8 (regardless of the rest of the URL)
+        return getRegNameEncoder().encode(host);
     }
 }
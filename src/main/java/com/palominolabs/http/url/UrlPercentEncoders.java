@@ -7,9 +7,6 @@ package com.palominolabs.http.url;
 import javax.annotation.concurrent.ThreadSafe;
 import java.util.BitSet;
 
-import static com.google.common.base.Charsets.UTF_8;
-import static java.nio.charset.CodingErrorAction.REPLACE;
-
 /**
  * See RFC 3986, RFC 1738 and http://www.lunatech-research.com/archives/2009/02/03/what-every-web-developer-must-know-about-url-encoding.
  */
@@ -20,27 +17,39 @@ public final class UrlPercentEncoders {
      * an encoder for RFC 3986 reg-names
      */
 
-    private static final BitSet REG_NAME_BIT_SET = new BitSet();
+    private static final SafeCharSet REG_NAME_SAFE_CHARS;
+
+    private static final SafeCharSet PATH_SAFE_CHARS;
+    private static final SafeCharSet MATRIX_SAFE_CHARS;
+    private static final SafeCharSet QUERY_SAFE_CHARS;
+    private static final SafeCharSet FRAGMENT_SAFE_CHARS;
 
-    private static final BitSet PATH_BIT_SET = new BitSet();
-    private static final BitSet MATRIX_BIT_SET = new BitSet();
-    private static final BitSet QUERY_BIT_SET = new BitSet();
-    private static final BitSet FRAGMENT_BIT_SET = new BitSet();
+    private static final PercentEncoder REG_NAME_ENCODER;
+    private static final PercentEncoder PATH_ENCODER;
+    private static final PercentEncoder MATRIX_ENCODER;
+    private static final PercentEncoder QUERY_ENCODER;
+    private static final PercentEncoder FRAGMENT_ENCODER;
 
     static {
+        BitSet regNameBitSet = new BitSet();
+        BitSet pathBitSet = new BitSet();
+        BitSet matrixBitSet = new BitSet();
+        BitSet queryBitSet = new BitSet();
+        BitSet fragmentBitSet = new BitSet();
+
         // RFC 3986 'reg-name'. This is not very aggressive... it's quite possible to have DNS-illegal names out of this.
         // Regardless, it will at least be URI-compliant even if it's not HTTP URL-compliant.
-        addUnreserved(REG_NAME_BIT_SET);
-        addSubdelims(REG_NAME_BIT_SET);
+        addUnreserved(regNameBitSet);
+        addSubdelims(regNameBitSet);
 
         // Represents RFC 3986 'pchar'. Remove delimiter that starts matrix section.
-        addPChar(PATH_BIT_SET);
-        PATH_BIT_SET.clear((int) ';');
+        addPChar(pathBitSet);
+        pathBitSet.clear((int) ';');
 
         // Remove delims for HTTP matrix params as per RFC 1738 S3.3. The other reserved chars ('/' and '?') are already excluded.
-        addPChar(MATRIX_BIT_SET);
-        MATRIX_BIT_SET.clear((int) ';');
-        MATRIX_BIT_SET.clear((int) '=');
+        addPChar(matrixBitSet);
+        matrixBitSet.clear((int) ';');
+        matrixBitSet.clear((int) '=');
 
         /*
         * at this point it represents RFC 3986 'query'.
@@ -48,37 +57,60 @@ public final class UrlPercentEncoders {
         * http://www.w3.org/TR/html4/interact/forms.html#h-17.13.4.1 also specifies that "+" can mean space in a query,
         * so we will make sure to say that '+' is not safe to leave as-is
         */
-        addQuery(QUERY_BIT_SET);
-        QUERY_BIT_SET.clear((int) '=');
-        QUERY_BIT_SET.clear((int) '&');
-        QUERY_BIT_SET.clear((int) '+');
-
-        addFragment(FRAGMENT_BIT_SET);
+        addQuery(queryBitSet);
+        queryBitSet.clear((int) '=');
+        queryBitSet.clear((int) '&');
+        queryBitSet.clear((int) '+');
+
+        addFragment(fragmentBitSet);
+
+        REG_NAME_SAFE_CHARS = SafeCharSet.fromBitSet(regNameBitSet);
+        PATH_SAFE_CHARS = SafeCharSet.fromBitSet(pathBitSet);
+        MATRIX_SAFE_CHARS = SafeCharSet.fromBitSet(matrixBitSet);
+        QUERY_SAFE_CHARS = SafeCharSet.fromBitSet(queryBitSet);
+        FRAGMENT_SAFE_CHARS = SafeCharSet.fromBitSet(fragmentBitSet);
+
+        // UTF-8 encoders are thread safe, so one of each is enough
+        REG_NAME_ENCODER = new PercentEncoder(REG_NAME_SAFE_CHARS);
+        PATH_ENCODER = new PercentEncoder(PATH_SAFE_CHARS);
+        MATRIX_ENCODER = new PercentEncoder(MATRIX_SAFE_CHARS);
+        QUERY_ENCODER = new PercentEncoder(QUERY_SAFE_CHARS);
+        FRAGMENT_ENCODER = new PercentEncoder(FRAGMENT_SAFE_CHARS);
     }
 
+    /**
+     * @return a shared, thread-safe UTF-8 encoder for RFC 3986 reg-names
+     */
     public static PercentEncoder getRegNameEncoder() {
-        return new PercentEncoder(REG_NAME_BIT_SET, UTF_8.newEncoder().onMalformedInput(REPLACE)
-            .onUnmappableCharacter(REPLACE));
+        return REG_NAME_ENCODER;
     }
 
+    /**
+     * @return a shared, thread-safe UTF-8 encoder for path segments
+     */
     public static PercentEncoder getPathEncoder() {
-        return new PercentEncoder(PATH_BIT_SET, UTF_8.newEncoder().onMalformedInput(REPLACE)
-            .onUnmappableCharacter(REPLACE));
+        return PATH_ENCODER;
     }
 
+    /**
+     * @return a shared, thread-safe UTF-8 encoder for matrix param names and values
+     */
     public static PercentEncoder getMatrixEncoder() {
-        return new PercentEncoder(MATRIX_BIT_SET, UTF_8.newEncoder().onMalformedInput(REPLACE)
-            .onUnmappableCharacter(REPLACE));
+        return MATRIX_ENCODER;
     }
 
+    /**
+     * @return a shared, thread-safe UTF-8 encoder for query param names and values
+     */
     public static PercentEncoder getQueryEncoder() {
-        return new PercentEncoder(QUERY_BIT_SET, UTF_8.newEncoder().onMalformedInput(REPLACE)
-            .onUnmappableCharacter(REPLACE));
+        return QUERY_ENCODER;
     }
 
+    /**
+     * @return a shared, thread-safe UTF-8 encoder for fragments
+     */
     public static PercentEncoder getFragmentEncoder() {
-        return new PercentEncoder(FRAGMENT_BIT_SET, UTF_8.newEncoder().onMalformedInput(REPLACE)
-            .onUnmappableCharacter(REPLACE));
+        return FRAGMENT_ENCODER;
     }
 
     private UrlPercentEncoders() {
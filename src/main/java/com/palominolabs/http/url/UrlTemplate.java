@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2012 Palomino Labs, Inc.
+ */
+
+package com.palominolabs.http.url;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.palominolabs.http.url.UrlPercentEncoders.getFragmentEncoder;
+import static com.palominolabs.http.url.UrlPercentEncoders.getMatrixEncoder;
+import static com.palominolabs.http.url.UrlPercentEncoders.getPathEncoder;
+import static com.palominolabs.http.url.UrlPercentEncoders.getQueryEncoder;
+
+/**
+ * A URL shape with variables, e.g. "https://api.foo.com/v2/users/{id}/orders;sort={sort}?limit={n}", that is parsed
+ * and encoded once so that building a URL from it only has to encode the variable values.
+ *
+ * Everything in the template other than the variables is unencoded text, just like the strings passed to {@link
+ * UrlBuilder}: "/", ";", "=", "?", "&amp;" and "#" delimit path segments, matrix params, query params and the fragment,
+ * and everything else is encoded with the same rules UrlBuilder uses for that part of the url. Each variable's value
+ * is encoded with the rules for the part of the url the variable is in. The scheme and authority can't contain
+ * variables.
+ *
+ * Templates are immutable, so one can be shared by any number of threads.
+ */
+@Immutable
+public final class UrlTemplate {
+
+    /**
+     * The parts of a url that variables and literal text can be in
+     */
+    private enum Part {
+        PATH(getPathEncoder()),
+        MATRIX(getMatrixEncoder()),
+        QUERY(getQueryEncoder()),
+        FRAGMENT(getFragmentEncoder());
+
+        private final PercentEncoder encoder;
+
+        Part(PercentEncoder encoder) {
+            this.encoder = encoder;
+        }
+    }
+
+    @Nonnull
+    private final String template;
+
+    /**
+     * The encoded literal text around the variables: literal i is [literalStarts[i], literalStarts[i + 1]), with
+     * variable slot i between literal i and literal i + 1
+     */
+    private final char[] literalChars;
+    private final byte[] literalBytes;
+    private final int[] literalStarts;
+
+    /**
+     * For each slot, the encoder for the part of the url it's in
+     */
+    private final PercentEncoder[] slotEncoders;
+
+    /**
+     * For each slot, the index of its variable in variableNames (a variable can be used more than once)
+     */
+    private final int[] slotVariables;
+
+    private final List<String> variableNames;
+
+    private UrlTemplate(String template, String literals, int[] literalStarts, PercentEncoder[] slotEncoders,
+        int[] slotVariables, List<String> variableNames) {
+        this.template = template;
+        this.literalChars = literals.toCharArray();
+        this.literalBytes = new byte[literalChars.length];
+        for (int i = 0; i < literalChars.length; i++) {
+            // encoded, so it's all ascii
+            literalBytes[i] = (byte) literalChars[i];
+        }
+        this.literalStarts = literalStarts;
+        this.slotEncoders = slotEncoders;
+        this.slotVariables = slotVariables;
+        this.variableNames = variableNames;
+    }
+
+    /**
+     * @param template a url with variables, e.g. "http://foo.com/users/{id}?format={format}". The url must have a
+     *                 scheme and a host, and may have a port, path (with matrix params), query and fragment.
+     * @return a template that can be expanded with values for the variables
+     * @throws IllegalArgumentException if the template is malformed
+     * @throws CharacterCodingException if character encoding of the literal text fails
+     */
+    @Nonnull
+    public static UrlTemplate compile(@Nonnull String template) throws CharacterCodingException {
+        int schemeEnd = template.indexOf("://");
+        if (schemeEnd < 1) {
+            throw new IllegalArgumentException("Template must start with a scheme and '://': <" + template + ">");
+        }
+
+        int authorityStart = schemeEnd + 3;
+        int authorityEnd = authorityStart;
+        while (authorityEnd < template.length() && "/?#".indexOf(template.charAt(authorityEnd)) == -1) {
+            authorityEnd++;
+        }
+
+        StringBuilder literals = new StringBuilder(template.length() * 2);
+        literals.append(template, 0, authorityStart);
+        appendEncodedAuthority(template, authorityStart, authorityEnd, literals);
+
+        List<Integer> literalStarts = new ArrayList<Integer>();
+        List<PercentEncoder> slotEncoders = new ArrayList<PercentEncoder>();
+        List<Integer> slotVariables = new ArrayList<Integer>();
+        List<String> variableNames = new ArrayList<String>();
+        literalStarts.add(0);
+
+        Part part = Part.PATH;
+        StringBuilder unencoded = new StringBuilder();
+        int i = authorityEnd;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+
+            Part next = nextPart(part, c);
+            if (next == null && c != '{') {
+                unencoded.append(c);
+                i++;
+                continue;
+            }
+
+            literals.append(part.encoder.encode(unencoded));
+            unencoded.setLength(0);
+
+            if (c != '{') {
+                // delimiter
+                literals.append(c);
+                part = next;
+                i++;
+                continue;
+            }
+
+            int nameEnd = template.indexOf('}', i + 1);
+            if (nameEnd == -1) {
+                throw new IllegalArgumentException("Unterminated variable at position " + i + " in <" + template + ">");
+            }
+            String name = template.substring(i + 1, nameEnd);
+            if (name.isEmpty() || name.indexOf('{') != -1) {
+                throw new IllegalArgumentException("Invalid variable name <" + name + "> in <" + template + ">");
+            }
+
+            int variable = variableNames.indexOf(name);
+            if (variable == -1) {
+                variable = variableNames.size();
+                variableNames.add(name);
+            }
+
+            slotEncoders.add(part.encoder);
+            slotVariables.add(variable);
+            literalStarts.add(literals.length());
+            i = nameEnd + 1;
+        }
+
+        literals.append(part.encoder.encode(unencoded));
+        literalStarts.add(literals.length());
+
+        int[] starts = new int[literalStarts.size()];
+        for (int j = 0; j < starts.length; j++) {
+            starts[j] = literalStarts.get(j);
+        }
+        int[] variables = new int[slotVariables.size()];
+        for (int j = 0; j < variables.length; j++) {
+            variables[j] = slotVariables.get(j);
+        }
+
+        return new UrlTemplate(template, literals.toString(), starts,
+            slotEncoders.toArray(new PercentEncoder[slotEncoders.size()]), variables,
+            Collections.unmodifiableList(variableNames));
+    }
+
+    /**
+     * @return the names of the variables, in the order their values are passed to {@link
+     * UrlTemplate#expand(String...)}. A variable that is used more than once in the template is only listed once.
+     */
+    @Nonnull
+    public List<String> getVariableNames() {
+        return variableNames;
+    }
+
+    /**
+     * @param values values for the variables, in the order of {@link UrlTemplate#getVariableNames()}
+     * @return the url string
+     * @throws IllegalArgumentException if the wrong number of values is provided
+     * @throws CharacterCodingException if character encoding fails
+     */
+    @Nonnull
+    public String expand(@Nonnull String... values) throws CharacterCodingException {
+        StringBuilder buf = new StringBuilder(expandedLength(values));
+        appendExpanded(buf, values);
+        return buf.toString();
+    }
+
+    /**
+     * Expand the template, appending the url to output.
+     *
+     * @param output where the url string will be appended
+     * @param values values for the variables, in the order of {@link UrlTemplate#getVariableNames()}
+     * @throws IllegalArgumentException if the wrong number of values is provided
+     * @throws IOException              if output throws, or if character encoding fails
+     */
+    public void appendTo(@Nonnull Appendable output, @Nonnull String... values) throws IOException {
+        if (output instanceof StringBuilder) {
+            StringBuilder buf = (StringBuilder) output;
+            buf.ensureCapacity(buf.length() + expandedLength(values));
+            appendExpanded(buf, values);
+            return;
+        }
+
+        output.append(expand(values));
+    }
+
+    /**
+     * Expand the template, writing the url as US-ASCII bytes.
+     *
+     * @param output where the url will be written, starting at its position
+     * @param values values for the variables, in the order of {@link UrlTemplate#getVariableNames()}
+     * @throws IllegalArgumentException if the wrong number of values is provided
+     * @throws BufferOverflowException  if output has less than {@link UrlTemplate#expandedLength(String...)} bytes
+     *                                  remaining, in which case nothing is written
+     * @throws CharacterCodingException if character encoding fails
+     */
+    public void writeTo(@Nonnull ByteBuffer output, @Nonnull String... values) throws CharacterCodingException {
+        if (expandedLength(values) > output.remaining()) {
+            throw new BufferOverflowException();
+        }
+
+        for (int i = 0; i < slotEncoders.length; i++) {
+            output.put(literalBytes, literalStarts[i], literalStarts[i + 1] - literalStarts[i]);
+            slotEncoders[i].putEncoded(values[slotVariables[i]], output);
+        }
+
+        int last = literalStarts[slotEncoders.length];
+        output.put(literalBytes, last, literalBytes.length - last);
+    }
+
+    /**
+     * @param values values for the variables, in the order of {@link UrlTemplate#getVariableNames()}
+     * @return the length of the expanded url, in chars for {@link UrlTemplate#expand(String...)} or bytes for {@link
+     * UrlTemplate#writeTo(ByteBuffer, String...)}
+     * @throws IllegalArgumentException if the wrong number of values is provided
+     * @throws CharacterCodingException if character encoding fails
+     */
+    public int expandedLength(@Nonnull String... values) throws CharacterCodingException {
+        if (values.length != variableNames.size()) {
+            throw new IllegalArgumentException(
+                "Expected " + variableNames.size() + " values for <" + template + "> but got " + values.length);
+        }
+
+        int length = literalChars.length;
+        for (int i = 0; i < slotEncoders.length; i++) {
+            length += slotEncoders[i].encodedLength(values[slotVariables[i]]);
+        }
+
+        return length;
+    }
+
+    /**
+     * @return the template string this was compiled from
+     */
+    @Override
+    public String toString() {
+        return template;
+    }
+
+    /**
+     * @param buf    where the url will be appended
+     * @param values values for the variables, already checked to be the right number
+     */
+    private void appendExpanded(StringBuilder buf, String[] values) throws CharacterCodingException {
+        for (int i = 0; i < slotEncoders.length; i++) {
+            buf.append(literalChars, literalStarts[i], literalStarts[i + 1] - literalStarts[i]);
+            slotEncoders[i].encode(values[slotVariables[i]], buf);
+        }
+
+        int last = literalStarts[slotEncoders.length];
+        buf.append(literalChars, last, literalChars.length - last);
+    }
+
+    /**
+     * @param template template
+     * @param start    start of the host
+     * @param end      end of the authority
+     * @param buf      where the encoded host and port will be appended
+     */
+    private static void appendEncodedAuthority(String template, int start, int end, StringBuilder buf) throws
+        CharacterCodingException {
+        // the port, if any, is after the last ':' that isn't inside an IPv6 literal
+        int portStart = template.lastIndexOf(':', end - 1) + 1;
+        if (portStart <= start || template.lastIndexOf(']', end - 1) >= portStart) {
+            portStart = -1;
+        }
+
+        String host = template.substring(start, portStart == -1 ? end : portStart - 1);
+        if (host.isEmpty() || template.substring(start, end).indexOf('{') != -1) {
+            throw new IllegalArgumentException(
+                "Template must have a host and no variables in the authority: <" + template + ">");
+        }
+        buf.append(UrlBuilder.encodeHost(host));
+
+        if (portStart != -1) {
+            if (portStart == end) {
+                throw new IllegalArgumentException("Invalid port in <" + template + ">");
+            }
+            for (int i = portStart; i < end; i++) {
+                if (template.charAt(i) < '0' || template.charAt(i) > '9') {
+                    throw new IllegalArgumentException("Invalid port in <" + template + ">");
+                }
+            }
+
+            buf.append(':').append(template, portStart, end);
+        }
+    }
+
+    /**
+     * @param part the part of the url c is in
+     * @param c    template char
+     * @return the part after c if c is a delimiter in part, or null if c is literal text (or starts a variable)
+     */
+    private static Part nextPart(Part part, char c) {
+        switch (c) {
+            case '/':
+                return part == Part.PATH || part == Part.MATRIX ? Part.PATH : null;
+            case ';':
+                return part == Part.PATH || part == Part.MATRIX ? Part.MATRIX : null;
+            case '=':
+                return part == Part.MATRIX || part == Part.QUERY ? part : null;
+            case '&':
+                return part == Part.QUERY ? part : null;
+            case '?':
+                return part == Part.PATH || part == Part.MATRIX ? Part.QUERY : null;
+            case '#':
+                return part == Part.FRAGMENT ? null : Part.FRAGMENT;
+            default:
+                return null;
+        }
+    }
+}
@@ -4,6 +4,11 @@ import groovy.transform.CompileStatic
 import org.junit.Before
 import org.junit.Test
 
+import java.nio.ByteBuffer
+import java.nio.charset.CodingErrorAction
+import java.nio.charset.MalformedInputException
+
+import static com.google.common.base.Charsets.US_ASCII
 import static com.google.common.base.Charsets.UTF_8
 import static java.lang.Character.isHighSurrogate
 import static java.lang.Character.isLowSurrogate
@@ -25,6 +30,22 @@ class PercentDecoderTest {
     assert 'asdf' == decoder.decode('asdf')
   }
 
+  @Test
+  public void testReturnsInputWithoutPercentsUnchanged() {
+    String input = 'asdf'
+    assert decoder.decode(input).is(input)
+  }
+
+  @Test
+  public void testDecodesNonStringWithoutPercents() {
+    assert 'asdf' == decoder.decode(new StringBuilder('asdf'))
+  }
+
+  @Test
+  public void testDecodesUnencodedRunsBetweenPercents() {
+    assert 'a#bc##d' == decoder.decode('a%23bc%23%23d')
+  }
+
   @Test
   public void testDecodeSingleByte() {
     assert '#' == decoder.decode('%23')
@@ -60,6 +81,148 @@ class PercentDecoderTest {
     }
   }
 
+  @Test
+  public void testDecodeLowercaseHex() {
+    assert '\u2603' == decoder.decode('%e2%98%83')
+  }
+
+  @Test
+  public void testNonAsciiDigitsAreNotHex() {
+    try {
+      decoder.decode('%\uff12\uff13')
+      fail()
+    } catch (IllegalArgumentException e) {
+      assert 'Invalid %-tuple <%\uff12\uff13>' == e.message
+    }
+  }
+
+  @Test
+  public void testDecodeUtf8MultiByte() {
+    assert 'snow\u2603man clef\ud834\udd1e \u00e9' == decoder.decode('snow%E2%98%83man clef%F0%9D%84%9E %C3%A9')
+  }
+
+  @Test
+  public void testDecodeUtf8MalformedReported() {
+    try {
+      decoder.decode('a%E2%98b')
+      fail()
+    } catch (MalformedInputException e) {
+      // a literal char ends the run of encoded bytes, so the 3 byte sequence is truncated
+      assert 2 == e.inputLength
+    }
+  }
+
+  @Test
+  public void testDecodeUtf8MalformedReplaced() {
+    PercentDecoder replacing = new PercentDecoder(UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE))
+    assert 'a\ufffd\ufffdb\ufffd' == replacing.decode('a%FF%C3b%ED%A0%80')
+  }
+
+  @Test
+  public void testDecodeRegion() {
+    assert 'b c' == decoder.decode('a=b%20c&d', 2, 7)
+    assert 'b' == decoder.decode(new StringBuilder('abc'), 1, 2)
+    assert '' == decoder.decode('abc', 1, 1)
+  }
+
+  @Test
+  public void testDecodeRegionAppends() {
+    StringBuilder buf = new StringBuilder('/')
+    decoder.decode('a=b%20c&d', 2, 7, buf)
+    assert '/b c' == buf.toString()
+
+    decoder.decode('xyz', 1, 2, buf)
+    assert '/b cy' == buf.toString()
+
+    StringWriter writer = new StringWriter()
+    decoder.decode(new StringBuilder('a=%E2%98%83&d'), 2, 11, (Appendable) writer)
+    assert '\u2603' == writer.toString()
+  }
+
+  @Test
+  public void testDecodeCharArray() {
+    char[] chars = 'GET /a%20b%C3%A9 HTTP/1.1'.toCharArray()
+
+    StringBuilder buf = new StringBuilder()
+    decoder.decode(chars, 5, 11, buf)
+    assert 'a b\u00e9' == buf.toString()
+
+    StringWriter writer = new StringWriter()
+    decoder.decode(chars, 5, 11, (Appendable) writer)
+    assert 'a b\u00e9' == writer.toString()
+  }
+
+  @Test
+  public void testDecodeRegionIncompletePercentPair() {
+    try {
+      decoder.decode('a=b%2&d', 2, 5)
+      fail()
+    } catch (IllegalArgumentException e) {
+      assert 'Could not percent decode <b%2>: incomplete %-pair at position 1' == e.message
+    }
+  }
+
+  @Test
+  public void testDecodeRegionOutOfBounds() {
+    try {
+      decoder.decode('abc', 2, 4)
+      fail()
+    } catch (IndexOutOfBoundsException e) {
+      assert 'Invalid range [2, 4) for input of length 3' == e.message
+    }
+  }
+
+  @Test
+  public void testDecodeByteArray() {
+    byte[] bytes = 'GET /snow%E2%98%83man%20 HTTP/1.1'.getBytes(US_ASCII)
+    assert 'snow\u2603man ' == decoder.decode(bytes, 5, 19)
+  }
+
+  @Test
+  public void testDecodeByteBufferAdvancesPosition() {
+    ByteBuffer buf = ByteBuffer.wrap('a%23b'.getBytes(US_ASCII))
+    assert 'a#b' == decoder.decode(buf)
+    assert !buf.hasRemaining()
+  }
+
+  @Test
+  public void testDecodeByteBufferWithRawNonAsciiBytes() {
+    // raw UTF-8 bytes are decoded together with adjacent %-encoded ones
+    ByteBuffer buf = ByteBuffer.wrap([0x61, 0xE2, 0x25, 0x39, 0x38, 0x83] as byte[])
+    assert 'a\u2603' == decoder.decode(buf)
+  }
+
+  @Test
+  public void testDecodeByteBufferIncompletePercentPair() {
+    try {
+      decoder.decode(ByteBuffer.wrap('ab%2'.getBytes(US_ASCII)))
+      fail()
+    } catch (IllegalArgumentException e) {
+      assert 'Could not percent decode <ab%2>: incomplete %-pair at position 2' == e.message
+    }
+  }
+
+  @Test
+  public void testDecodeByteBufferInvalidHex() {
+    try {
+      decoder.decode(ByteBuffer.wrap('a%xzb'.getBytes(US_ASCII)))
+      fail()
+    } catch (IllegalArgumentException e) {
+      assert 'Invalid %-tuple <%xz>' == e.message
+    }
+  }
+
+  @Test
+  public void testDecodeBytes() {
+    ByteBuffer input = ByteBuffer.wrap('a%20%E2%98%83'.getBytes(US_ASCII))
+    ByteBuffer output = ByteBuffer.allocate(16)
+    PercentDecoder.decodeBytes(input, output)
+    output.flip()
+
+    assert !input.hasRemaining()
+    assert toHex('a \u2603'.getBytes(UTF_8)) == toHex(Arrays.copyOf(output.array(), output.limit()))
+  }
+
   @Test
   @CompileStatic
   public void testRandomStrings() {
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012 Palomino Labs, Inc.
+ */
+
+package com.palominolabs.http.url;
+
+import org.junit.Test;
+
+import static com.palominolabs.http.url.HostClassifier.isIpLiteral;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class HostClassifierTest {
+
+    @Test
+    public void testIpv4() {
+        assertTrue(isIpLiteral("127.0.0.1"));
+        assertTrue(isIpLiteral("0.0.0.0"));
+        assertTrue(isIpLiteral("255.255.255.255"));
+    }
+
+    @Test
+    public void testNotIpv4() {
+        assertFalse(isIpLiteral("300.100.50.1"));
+        assertFalse(isIpLiteral("1.2.3"));
+        assertFalse(isIpLiteral("1.2.3.4.5"));
+        assertFalse(isIpLiteral("1.2.3."));
+        assertFalse(isIpLiteral("1..3.4"));
+        assertFalse(isIpLiteral("01.2.3.4"));
+        assertFalse(isIpLiteral("1.2.3.4a"));
+        assertFalse(isIpLiteral(""));
+        assertFalse(isIpLiteral("foo.com"));
+    }
+
+    @Test
+    public void testIpv6Compressed() {
+        assertTrue(isIpLiteral("[::]"));
+        assertTrue(isIpLiteral("[::1]"));
+        assertTrue(isIpLiteral("[1::]"));
+        assertTrue(isIpLiteral("[2001:db8:85a3::8a2e:370:7334]"));
+        assertTrue(isIpLiteral("[1:2:3:4:5:6::7]"));
+    }
+
+    @Test
+    public void testIpv6Full() {
+        assertTrue(isIpLiteral("[2001:0db8:85a3:0000:0000:8a2e:0370:7334]"));
+        assertTrue(isIpLiteral("[2001:DB8:0:0:0:0:0:1]"));
+    }
+
+    @Test
+    public void testIpv6EmbeddedIpv4() {
+        assertTrue(isIpLiteral("[::ffff:192.0.2.128]"));
+        assertTrue(isIpLiteral("[::192.0.2.128]"));
+        assertTrue(isIpLiteral("[1:2:3:4:5:6:192.0.2.128]"));
+    }
+
+    @Test
+    public void testNotIpv6() {
+        assertFalse(isIpLiteral("[]"));
+        assertFalse(isIpLiteral("::1"));
+        assertFalse(isIpLiteral("[::1"));
+        assertFalse(isIpLiteral("[:1]"));
+        assertFalse(isIpLiteral("[1:]"));
+        assertFalse(isIpLiteral("[1::2::3]"));
+        assertFalse(isIpLiteral("[:::]"));
+        assertFalse(isIpLiteral("[1:2:3:4:5:6:7]"));
+        assertFalse(isIpLiteral("[1:2:3:4:5:6:7:8:9]"));
+        assertFalse(isIpLiteral("[1:2:3:4:5:6:7::8]"));
+        assertFalse(isIpLiteral("[12345::]"));
+        assertFalse(isIpLiteral("[::g]"));
+        assertFalse(isIpLiteral("[1:2:3:4:5:6:7:192.0.2.128]"));
+        assertFalse(isIpLiteral("[::192.0.2.128:1]"));
+        assertFalse(isIpLiteral("[::300.0.2.128]"));
+        assertFalse(isIpLiteral("[v1.fe80::a]"));
+    }
+}
@@ -7,13 +7,27 @@ package com.palominolabs.http.url;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CoderResult;
+import java.nio.charset.MalformedInputException;
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static com.google.common.base.Charsets.US_ASCII;
 import static com.google.common.base.Charsets.UTF_16BE;
 import static com.google.common.base.Charsets.UTF_8;
 import static java.nio.charset.CodingErrorAction.REPLACE;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public final class PercentEncoderTest {
 
@@ -51,27 +65,246 @@ public final class PercentEncoderTest {
         assertEquals("abcd%41%42%43%44", pe.encode("abcdABCD"));
     }
 
+    @Test
+    public void testEncodeReturnsSafeInputUnchanged() throws CharacterCodingException {
+        String input = "abcdABCD1234";
+        assertSame(input, alnum.encode(input));
+    }
+
+    @Test
+    public void testEncodeEmpty() throws CharacterCodingException {
+        assertEquals("", alnum.encode(""));
+    }
+
+    @Test
+    public void testEncodeSafeRunsBetweenUnsafe() throws CharacterCodingException {
+        assertEquals("ab%20cd%20%20ef", alnum.encode(new StringBuilder("ab cd  ef")));
+    }
+
+    @Test
+    public void testEncodedLength() throws CharacterCodingException {
+        for (String s : new String[]{"", "abc", "a b", "\u00e9", "snowman\u2603", "clef\ud834\udd1e", "a\udd1eb"}) {
+            assertEquals(s, alnum.encode(s).length(), alnum.encodedLength(s));
+            assertEquals(s, alnum16.encode(s).length(), alnum16.encodedLength(s));
+        }
+    }
+
+    @Test
+    public void testIsEncoded() {
+        assertTrue(alnum.isEncoded(""));
+        assertTrue(alnum.isEncoded("ab%20cd%e2%98%83"));
+        assertFalse(alnum.isEncoded("ab cd"));
+        assertFalse(alnum.isEncoded("ab%2"));
+        assertFalse(alnum.isEncoded("ab%2g"));
+        assertFalse(alnum.isEncoded("\u00e9"));
+    }
+
+    @Test
+    public void testEncodeAppendsToStringBuilder() throws CharacterCodingException {
+        StringBuilder buf = new StringBuilder("prefix/");
+        alnum.encode("a b", buf);
+        assertEquals("prefix/a%20b", buf.toString());
+    }
+
+    @Test
+    public void testEncodeAppendsToAppendable() throws IOException {
+        StringWriter writer = new StringWriter();
+        writer.write("prefix/");
+        alnum.encode("a b\u2603", writer);
+        assertEquals("prefix/a%20b%E2%98%83", writer.toString());
+    }
+
+    @Test
+    public void testEncodeRegion() throws IOException {
+        StringBuilder buf = new StringBuilder("/");
+        alnum.encode("xxa b\u2603yy", 2, 6, buf);
+        assertEquals("/a%20b%E2%98%83", buf.toString());
+
+        buf.setLength(0);
+        alnum.encode("xxabyy", 2, 4, buf);
+        assertEquals("ab", buf.toString());
+
+        StringWriter writer = new StringWriter();
+        alnum.encode(new StringBuilder("xa by"), 1, 4, writer);
+        assertEquals("a%20b", writer.toString());
+    }
+
+    @Test
+    public void testEncodeRegionEndingInHighSurrogate() throws CharacterCodingException {
+        try {
+            alnum.encode("a\ud834\udd1e", 0, 2, new StringBuilder());
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid UTF-16: The last character in the input string was a high surrogate (\\ud834)",
+                e.getMessage());
+        }
+    }
+
+    @Test
+    public void testEncodeRegionOutOfBounds() throws CharacterCodingException {
+        try {
+            alnum.encode("abc", 2, 4, new StringBuilder());
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            assertEquals("Invalid range [2, 4) for input of length 3", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testEncodeCharArray() throws IOException {
+        char[] chars = "GET /a b\u00e9 HTTP/1.1".toCharArray();
+
+        StringBuilder buf = new StringBuilder();
+        alnum.encode(chars, 5, 4, buf);
+        assertEquals("a%20b%C3%A9", buf.toString());
+
+        StringWriter writer = new StringWriter();
+        alnum.encode(chars, 5, 4, writer);
+        assertEquals("a%20b%C3%A9", writer.toString());
+    }
+
+    @Test
+    public void testEncodeToByteBuffer() throws CharacterCodingException {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        buf.put((byte) '/');
+        assertEquals(CoderResult.UNDERFLOW, alnum.encode("a b\u2603\ud834\udd1e", buf));
+
+        assertEquals("/a%20b%E2%98%83%F0%9D%84%9E", new String(buf.array(), 0, buf.position(), US_ASCII));
+    }
+
+    @Test
+    public void testEncodeToByteBufferOverflow() throws CharacterCodingException {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        assertEquals(CoderResult.OVERFLOW, alnum.encode("a\u2603", buf));
+        assertEquals(0, buf.position());
+
+        assertEquals(CoderResult.OVERFLOW, alnum16.encode("a b c", buf));
+        assertEquals(0, buf.position());
+    }
+
+    @Test
+    public void testEncodeToByteBufferUtf16() throws CharacterCodingException {
+        ByteBuffer buf = ByteBuffer.allocate(16);
+        assertEquals(CoderResult.UNDERFLOW, alnum16.encode("a b", buf));
+        assertEquals("a%00%20b", new String(buf.array(), 0, buf.position(), US_ASCII));
+    }
+
+    @Test
+    public void testEncodeToByteArray() throws CharacterCodingException {
+        byte[] bytes = new byte[12];
+        assertEquals(11, alnum.encode("a\u2603", bytes, 1));
+        assertEquals("a%E2%98%83", new String(bytes, 1, 10, US_ASCII));
+
+        assertEquals(-1, alnum.encode("a\u2603", bytes, 3));
+    }
+
     @Test
     public void testEncodeUtf8() throws CharacterCodingException {
         // 1 UTF-16 char (unicode snowman)
         assertEquals("snowman%E2%98%83", alnum.encode("snowman\u2603"));
     }
 
+    @Test
+    public void testEncodeAsciiUnsafe() throws CharacterCodingException {
+        assertEquals("a%20b%2F%26%7F%00", alnum.encode("a b/&\u007f\u0000"));
+    }
+
+    @Test
+    public void testEncodeAsciiUnsafeThenMultiByte() throws CharacterCodingException {
+        assertEquals("%20snowman%E2%98%83%20", alnum.encode(" snowman\u2603 "));
+    }
+
     @Test
     public void testEncodeUtf8SurrogatePair() throws CharacterCodingException {
         // musical G clef: 1d11e, has to be represented in surrogate pair form
         assertEquals("clef%F0%9D%84%9E", alnum.encode("clef\ud834\udd1e"));
     }
 
+    @Test
+    public void testEncodeUtf8MatchesCharset() throws CharacterCodingException {
+        for (char c = 0x80; c < Character.MIN_SURROGATE; c++) {
+            assertEquals(Integer.toHexString(c), percentEncodeAll(String.valueOf(c).getBytes(UTF_8)),
+                alnum.encode(String.valueOf(c)));
+        }
+        for (char c = Character.MAX_SURROGATE + 1; c != 0; c++) {
+            assertEquals(Integer.toHexString(c), percentEncodeAll(String.valueOf(c).getBytes(UTF_8)),
+                alnum.encode(String.valueOf(c)));
+        }
+    }
+
+    @Test
+    public void testEncodeUtf8LoneLowSurrogateReplaced() throws CharacterCodingException {
+        assertEquals("a%3Fb", alnum.encode("a\udd1eb"));
+    }
+
+    @Test(expected = MalformedInputException.class)
+    public void testEncodeUtf8LoneLowSurrogateReported() throws CharacterCodingException {
+        BitSet bs = new BitSet();
+        bs.set('a');
+        new PercentEncoder(bs, UTF_8.newEncoder()).encode("a\udd1e");
+    }
+
+    @Test
+    public void testSharedEncoders() {
+        assertSame(UrlPercentEncoders.getPathEncoder(), UrlPercentEncoders.getPathEncoder());
+        assertSame(UrlPercentEncoders.getQueryEncoder(), UrlPercentEncoders.getQueryEncoder());
+    }
+
+    @Test
+    public void testSharedEncoderAcrossThreads() throws InterruptedException {
+        final PercentEncoder encoder = UrlPercentEncoders.getQueryEncoder();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final String suffix = String.valueOf(t);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 10000; i++) {
+                            String encoded = encoder.encode("snow \u2603 clef \ud834\udd1e " + suffix);
+                            if (!encoded.equals("snow%20%E2%98%83%20clef%20%F0%9D%84%9E%20" + suffix)) {
+                                failure.set(encoded);
+                            }
+                        }
+                    } catch (CharacterCodingException e) {
+                        failure.set(e.toString());
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+    }
+
     @Test
     public void testEncodeUtf16() throws CharacterCodingException {
         // 1 UTF-16 char (unicode snowman)
         assertEquals("snowman%26%03", alnum16.encode("snowman\u2603"));
     }
 
+    @Test
+    public void testEncodeUtf16AsciiUnsafe() throws CharacterCodingException {
+        // ascii chars aren't single bytes in UTF-16, so they can't take the ascii shortcut
+        assertEquals("a%00%20b", alnum16.encode("a b"));
+    }
+
     @Test
     public void testUrlEncodedUtf16SurrogatePair() throws CharacterCodingException {
         // musical G clef: 1d11e, has to be represented in surrogate pair form
         assertEquals("clef%D8%34%DD%1E", alnum16.encode("clef\ud834\udd1e"));
     }
+
+    private static String percentEncodeAll(byte[] bytes) {
+        StringBuilder buf = new StringBuilder();
+        for (byte b : bytes) {
+            buf.append(String.format("%%%02X", b & 0xFF));
+        }
+        return buf.toString();
+    }
 }
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2012 Palomino Labs, Inc.
+ */
+
+package com.palominolabs.http.url;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class SafeCharSetTest {
+
+    @Test
+    public void testContainsSameCharsAsBitSet() {
+        BitSet bs = new BitSet();
+        bs.set(0);
+        bs.set('?');
+        bs.set('@');
+        bs.set('z');
+        bs.set(127);
+
+        SafeCharSet set = SafeCharSet.fromBitSet(bs);
+        for (char c = 0; c < 256; c++) {
+            assertEquals(Integer.toHexString(c), bs.get(c), set.contains(c));
+        }
+        assertFalse(set.contains('\u2603'));
+    }
+
+    @Test
+    public void testCopiesBitSet() {
+        BitSet bs = new BitSet();
+        bs.set('a');
+        SafeCharSet set = SafeCharSet.fromBitSet(bs);
+
+        bs.clear('a');
+        assertTrue(set.contains('a'));
+    }
+
+    @Test
+    public void testRejectsNonAscii() {
+        BitSet bs = new BitSet();
+        bs.set('a');
+        bs.set(0xE9);
+        try {
+            SafeCharSet.fromBitSet(bs);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Safe chars must be ascii, but char \\ue9 was set", e.getMessage());
+        }
+    }
+}
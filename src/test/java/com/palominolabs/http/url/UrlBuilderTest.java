@@ -7,15 +7,22 @@ package com.palominolabs.http.url;
 import com.google.common.base.Throwables;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
 
+import static com.google.common.base.Charsets.US_ASCII;
+import static com.google.common.base.Charsets.UTF_8;
 import static com.palominolabs.http.url.UrlBuilder.forHost;
 import static com.palominolabs.http.url.UrlBuilder.fromUrl;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 
 public final class UrlBuilderTest {
@@ -178,6 +185,18 @@ public final class UrlBuilderTest {
         assertUrlEquals("http://[2001:db8:85a3::8a2e:370:7334]", ub.toUrlString());
     }
 
+    @Test
+    public void testIPv6LiteralUncompressed() throws CharacterCodingException {
+        UrlBuilder ub = forHost("http", "[2001:db8:0:0:0:0:0:1]");
+        assertUrlEquals("http://[2001:db8:0:0:0:0:0:1]", ub.toUrlString());
+    }
+
+    @Test
+    public void testIPv6LiteralEmbeddedIPv4() throws CharacterCodingException {
+        UrlBuilder ub = forHost("http", "[::ffff:192.0.2.128]");
+        assertUrlEquals("http://[::ffff:192.0.2.128]", ub.toUrlString());
+    }
+
     @Test
     public void testEncodedRegNameSingleByte() throws CharacterCodingException {
         UrlBuilder ub = forHost("http", "host?name;");
@@ -190,6 +209,15 @@ public final class UrlBuilderTest {
         assertUrlEquals("http://snow%E2%98%83man", ub.toUrlString());
     }
 
+    @Test
+    public void testRepeatedToUrlStringWithEncodedHostAndPort() throws CharacterCodingException {
+        UrlBuilder ub = forHost("http", "snow\u2603man", 8080);
+        assertUrlEquals("http://snow%E2%98%83man:8080", ub.toUrlString());
+
+        ub.queryParam("q", "v");
+        assertUrlEquals("http://snow%E2%98%83man:8080?q=v", ub.toUrlString());
+    }
+
     @Test
     public void testForceTrailingSlash() throws CharacterCodingException {
         UrlBuilder ub = forHost("https", "foo.com").forceTrailingSlash().pathSegments("a", "b", "c");
@@ -224,6 +252,179 @@ public final class UrlBuilderTest {
         assertUrlEquals("http://foo.com/seg1/seg2;m1=v1/seg3;m2=v2", ub.toUrlString());
     }
 
+    @Test
+    public void testManyParamsAfterReset() throws CharacterCodingException {
+        UrlBuilder ub = forHost("http", "foo.com");
+        StringBuilder expected = new StringBuilder();
+
+        for (int round = 0; round < 2; round++) {
+            ub.reset();
+            expected.setLength(0);
+            expected.append("http://foo.com");
+            for (int i = 0; i < 20; i++) {
+                ub.pathSegment("s" + i).matrixParam("m" + i, "v" + i);
+                expected.append("/s").append(i).append(";m").append(i).append("=v").append(i);
+            }
+            for (int i = 0; i < 60; i++) {
+                ub.queryParam("q" + i, "v" + i);
+                expected.append(i == 0 ? '?' : '&').append('q').append(i).append("=v").append(i);
+            }
+
+            assertUrlEquals(expected.toString(), ub.toUrlString());
+            assertEquals(expected.length(), ub.encodedLength());
+        }
+    }
+
+    @Test
+    public void testPreEncodedComponents() throws CharacterCodingException {
+        UrlBuilder ub = forHost("http", "foo.com")
+            .pathSegment(PreEncoded.pathSegment("v 2"))
+            .matrixParam(PreEncoded.matrixParam("m=1"), "v;1")
+            .pathSegmentEncoded("a%20b")
+            .matrixParamEncoded("m2", "v%3B2")
+            .queryParam(PreEncoded.queryParam("api key"), "k&1")
+            .queryParam(PreEncoded.queryParam("format"), PreEncoded.queryParam("json"))
+            .queryParamEncoded("q%3D", "v%26")
+            .fragment(PreEncoded.fragment("frag ment"));
+
+        String expected = "http://foo.com/v%202;m%3D1=v%3B1/a%20b;m2=v%3B2?api%20key=k%261&format=json&q%3D=v%26" +
+            "#frag%20ment";
+        assertUrlEquals(expected, ub.toUrlString());
+        assertEquals(expected.length(), ub.encodedLength());
+
+        ByteBuffer buf = ByteBuffer.allocate(expected.length());
+        ub.writeTo(buf);
+        assertEquals(expected, new String(buf.array(), US_ASCII));
+
+        ub.fragmentEncoded("f%20");
+        assertUrlEquals("http://foo.com/v%202;m%3D1=v%3B1/a%20b;m2=v%3B2?api%20key=k%261&format=json&q%3D=v%26#f%20",
+            ub.toUrlString());
+    }
+
+    @Test
+    public void testPreEncodedForWrongComponent() throws CharacterCodingException {
+        try {
+            forHost("http", "foo.com").queryParam(PreEncoded.pathSegment("a=b"), "c");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("<a=b> was not encoded as a query param", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testInvalidEncodedComponentFailsAssertion() {
+        try {
+            forHost("http", "foo.com").queryParamEncoded("a=b", "c");
+        } catch (AssertionError e) {
+            assertEquals("<a=b> is not a valid encoded query param", e.getMessage());
+            return;
+        }
+
+        // only checked when assertions are enabled, which they normally are for tests
+        assertFalse(UrlBuilder.class.desiredAssertionStatus());
+    }
+
+    @Test
+    public void testWriteToByteBuffer() throws CharacterCodingException {
+        UrlBuilder ub = allPartsBuilder();
+        String expected = ub.toUrlString();
+        assertEquals(expected.length(), ub.encodedLength());
+
+        ByteBuffer buf = ByteBuffer.allocate(expected.length() + 1);
+        buf.put((byte) ' ');
+        ub.writeTo(buf);
+        assertEquals(" " + expected, new String(buf.array(), 0, buf.position(), US_ASCII));
+    }
+
+    @Test
+    public void testWriteToByteBufferOverflow() throws CharacterCodingException {
+        UrlBuilder ub = allPartsBuilder();
+        ByteBuffer buf = ByteBuffer.allocate(ub.encodedLength() - 1);
+        try {
+            ub.writeTo(buf);
+            fail();
+        } catch (BufferOverflowException e) {
+            assertEquals(0, buf.position());
+        }
+    }
+
+    @Test
+    public void testWriteToByteArray() throws CharacterCodingException {
+        UrlBuilder ub = allPartsBuilder();
+        String expected = ub.toUrlString();
+
+        byte[] bytes = new byte[expected.length() + 2];
+        assertEquals(expected.length() + 2, ub.writeTo(bytes, 2));
+        assertEquals(expected, new String(bytes, 2, expected.length(), US_ASCII));
+    }
+
+    @Test
+    public void testAppendToStringBuilder() throws IOException {
+        UrlBuilder ub = allPartsBuilder();
+        StringBuilder buf = new StringBuilder("GET ");
+        ub.appendTo(buf);
+        assertEquals("GET " + ub.toUrlString(), buf.toString());
+    }
+
+    @Test
+    public void testAppendToWriter() throws IOException {
+        UrlBuilder ub = allPartsBuilder();
+        StringWriter writer = new StringWriter();
+        ub.appendTo(writer);
+        assertEquals(ub.toUrlString(), writer.toString());
+    }
+
+    @Test
+    public void testPathAndQuery() throws CharacterCodingException {
+        assertEquals("/foo/b%20r;m%C3%A9=v%3B1/%F0%9D%84%9E/?q1=v%261&q2=v%202",
+            allPartsBuilder().toPathAndQueryString());
+    }
+
+    @Test
+    public void testPathAndQueryEmptyPath() throws CharacterCodingException {
+        assertEquals("/", forHost("http", "foo.com").toPathAndQueryString());
+        assertEquals("/", forHost("http", "foo.com").forceTrailingSlash().toPathAndQueryString());
+        assertEquals("/?q=v", forHost("http", "foo.com").queryParam("q", "v").fragment("f").toPathAndQueryString());
+    }
+
+    @Test
+    public void testAppendPathAndQueryTo() throws IOException {
+        UrlBuilder ub = forHost("http", "foo.com").pathSegment("a b").queryParam("q", "v");
+
+        StringBuilder buf = new StringBuilder("GET ");
+        ub.appendPathAndQueryTo(buf);
+        assertEquals("GET /a%20b?q=v", buf.toString());
+
+        StringWriter writer = new StringWriter();
+        ub.appendPathAndQueryTo(writer);
+        assertEquals("/a%20b?q=v", writer.toString());
+    }
+
+    @Test
+    public void testReset() throws CharacterCodingException {
+        UrlBuilder ub = allPartsBuilder();
+        ub.reset();
+        assertUrlEquals("https://snow%E2%98%83.com:3333", ub.toUrlString());
+
+        ub.pathSegment("a").queryParam("q", "v");
+        assertUrlEquals("https://snow%E2%98%83.com:3333/a?q=v", ub.toUrlString());
+    }
+
+    @Test
+    public void testResetWithNewHost() throws CharacterCodingException {
+        UrlBuilder ub = allPartsBuilder();
+        ub.toUrlString();
+
+        ub.reset("http", "foo.com").pathSegment("a");
+        assertUrlEquals("http://foo.com/a", ub.toUrlString());
+
+        ub.reset("http", "foo.com", 8080).pathSegment("b");
+        assertUrlEquals("http://foo.com:8080/b", ub.toUrlString());
+
+        ub.reset("https", "foo.com", 8080);
+        assertUrlEquals("https://foo.com:8080", ub.toUrlString());
+    }
+
     @Test
     public void testFromUrlWithEverything() {
         String orig =
@@ -306,6 +507,83 @@ public final class UrlBuilderTest {
         assertUrlBuilderRoundtrip("http://foo.com/foo;", "http://foo.com/foo");
     }
 
+    @Test
+    public void testParseCharSequence() throws CharacterCodingException {
+        StringBuilder url = new StringBuilder("http://foo.com/a%20b;m=v?q=v#f");
+        assertUrlEquals("http://foo.com/a%20b;m=v?q=v#f", UrlBuilder.parse(url).toUrlString());
+    }
+
+    @Test
+    public void testParseIgnoresUserInfo() throws CharacterCodingException {
+        assertUrlEquals("http://foo.com:8080/a", UrlBuilder.parse("http://user:p@ss@foo.com:8080/a").toUrlString());
+    }
+
+    @Test
+    public void testParseLowerCasesScheme() throws CharacterCodingException {
+        assertUrlEquals("https://foo.com/a", UrlBuilder.parse("HTTPS://foo.com/a").toUrlString());
+    }
+
+    @Test
+    public void testParseIpv6HostWithPort() throws CharacterCodingException {
+        assertUrlEquals("http://[::1]:8080/a", UrlBuilder.parse("http://[::1]:8080/a").toUrlString());
+        assertUrlEquals("http://[::1]/a", UrlBuilder.parse("http://[::1]/a").toUrlString());
+    }
+
+    @Test
+    public void testParseEmptyPort() throws CharacterCodingException {
+        assertUrlEquals("http://foo.com/a", UrlBuilder.parse("http://foo.com:/a").toUrlString());
+    }
+
+    @Test
+    public void testParseQueryAndFragmentDelimiters() throws CharacterCodingException {
+        assertUrlEquals("http://foo.com?q=a?b#f?g/h", UrlBuilder.parse("http://foo.com?q=a?b#f?g/h").toUrlString());
+    }
+
+    @Test
+    public void testParseMalformed() throws CharacterCodingException {
+        assertParseFails("foo.com/a", "Not an absolute url with a host: <foo.com/a>");
+        assertParseFails("1http://foo.com", "Not an absolute url with a host: <1http://foo.com>");
+        assertParseFails("mailto:foo@bar.com", "Not an absolute url with a host: <mailto:foo@bar.com>");
+        assertParseFails("http:///a", "Not an absolute url with a host: <http:///a>");
+        assertParseFails("http://[::1/a", "Unterminated IP literal in <http://[::1/a>");
+        assertParseFails("http://[::1]x/a", "Invalid port in <http://[::1]x/a>");
+        assertParseFails("http://foo.com:8o/a", "Invalid port in <http://foo.com:8o/a>");
+        assertParseFails("http://foo.com:65536/a", "Invalid port in <http://foo.com:65536/a>");
+    }
+
+    @Test
+    public void testLenientQueryParsing() throws CharacterCodingException {
+        assertLenientQuery("http://foo.com?flag=&a=&b=c%3Dd%3De&c=d", "http://foo.com?flag&a=&b=c=d=e&&c=d&",
+            QueryParsePolicy.LENIENT);
+        assertLenientQuery("http://foo.com?=v", "http://foo.com?=v", QueryParsePolicy.LENIENT);
+        assertLenientQuery("http://foo.com", "http://foo.com?", QueryParsePolicy.LENIENT);
+        assertLenientQuery("http://foo.com", "http://foo.com?&&", QueryParsePolicy.LENIENT);
+        assertLenientQuery("http://foo.com?a=b%2Bc", "http://foo.com?a=b+c", QueryParsePolicy.LENIENT);
+    }
+
+    @Test
+    public void testLenientQueryParsingPlusAsSpace() throws CharacterCodingException {
+        assertLenientQuery("http://foo.com?a%20b=c%20d%2Be&f=", "http://foo.com?a+b=c+d%2Be&f",
+            QueryParsePolicy.LENIENT_PLUS_AS_SPACE);
+    }
+
+    @Test
+    public void testLenientQueryParsingFromUrl() throws CharacterCodingException, MalformedURLException {
+        assertUrlEquals("http://foo.com/a?flag=&b=c%3Dd",
+            fromUrl(new URL("http://foo.com/a?flag&b=c=d"), UTF_8.newDecoder(), QueryParsePolicy.LENIENT)
+                .toUrlString());
+    }
+
+    @Test
+    public void testStrictQueryParsingIsDefault() throws CharacterCodingException {
+        try {
+            UrlBuilder.parse("http://foo.com?flag");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Malformed query param: <flag>", e.getMessage());
+        }
+    }
+
     @Test
     public void testPercentDecodeInvalidPair() throws MalformedURLException, CharacterCodingException {
         try {
@@ -326,6 +604,31 @@ public final class UrlBuilderTest {
         }
     }
 
+    private static UrlBuilder allPartsBuilder() {
+        return forHost("https", "snow\u2603.com", 3333)
+            .pathSegments("foo", "b r")
+            .matrixParam("m\u00e9", "v;1")
+            .pathSegment("\ud834\udd1e")
+            .forceTrailingSlash()
+            .queryParam("q1", "v&1")
+            .queryParam("q2", "v 2")
+            .fragment("frag ment");
+    }
+
+    private static void assertLenientQuery(String expected, String url, QueryParsePolicy policy) throws
+        CharacterCodingException {
+        assertUrlEquals(expected, UrlBuilder.parse(url, UTF_8.newDecoder(), policy).toUrlString());
+    }
+
+    private static void assertParseFails(String url, String message) throws CharacterCodingException {
+        try {
+            UrlBuilder.parse(url);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
     private void assertUrlBuilderRoundtrip(String url) {
         assertUrlBuilderRoundtrip(url, url);
     }
@@ -337,6 +640,7 @@ public final class UrlBuilderTest {
     private void assertUrlBuilderRoundtrip(String origUrl, String finalUrl) {
         try {
             assertUrlEquals(finalUrl, fromUrl(new URL(origUrl)).toUrlString());
+            assertUrlEquals(finalUrl, UrlBuilder.parse(origUrl).toUrlString());
         } catch (CharacterCodingException e) {
             throw Throwables.propagate(e);
         } catch (MalformedURLException e) {
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2012 Palomino Labs, Inc.
+ */
+
+package com.palominolabs.http.url;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.util.Arrays;
+
+import static com.google.common.base.Charsets.US_ASCII;
+import static com.palominolabs.http.url.UrlBuilder.forHost;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public final class UrlTemplateTest {
+
+    @Test
+    public void testNoVariables() throws CharacterCodingException {
+        UrlTemplate template = UrlTemplate.compile("http://foo.com/a b/c?d=e f#g h");
+        assertEquals("http://foo.com/a%20b/c?d=e%20f#g%20h", template.expand());
+        assertEquals(0, template.getVariableNames().size());
+    }
+
+    @Test
+    public void testHostOnly() throws CharacterCodingException {
+        assertEquals("http://foo.com", UrlTemplate.compile("http://foo.com").expand());
+    }
+
+    @Test
+    public void testMatchesUrlBuilder() throws CharacterCodingException {
+        UrlTemplate template =
+            UrlTemplate.compile("https://snow\u2603.com:3333/v2/users/{id};m\u00e9={m}/orders?limit={n}&q={q}#{f}");
+        assertEquals(Arrays.asList("id", "m", "n", "q", "f"), template.getVariableNames());
+
+        String expected = forHost("https", "snow\u2603.com", 3333)
+            .pathSegments("v2", "users", "a/b c")
+            .matrixParam("m\u00e9", "v;=1")
+            .pathSegment("orders")
+            .queryParam("limit", "10&x=y")
+            .queryParam("q", "\ud834\udd1e+")
+            .fragment("frag ment")
+            .toUrlString();
+
+        String[] values = {"a/b c", "v;=1", "10&x=y", "\ud834\udd1e+", "frag ment"};
+        assertEquals(expected, template.expand(values));
+        assertEquals(expected.length(), template.expandedLength(values));
+    }
+
+    @Test
+    public void testVariablesWithinLiteralText() throws CharacterCodingException {
+        UrlTemplate template = UrlTemplate.compile("http://foo.com/{name}.json?q=pre {name} post");
+        assertEquals(Arrays.asList("name"), template.getVariableNames());
+        assertEquals("http://foo.com/a%20b.json?q=pre%20a%20b%20post", template.expand("a b"));
+    }
+
+    @Test
+    public void testIpv6HostWithPort() throws CharacterCodingException {
+        assertEquals("http://[::1]:8080/x", UrlTemplate.compile("http://[::1]:8080/{p}").expand("x"));
+        assertEquals("http://[::1]/x", UrlTemplate.compile("http://[::1]/{p}").expand("x"));
+    }
+
+    @Test
+    public void testAppendTo() throws IOException {
+        UrlTemplate template = UrlTemplate.compile("http://foo.com/{p}");
+
+        StringBuilder buf = new StringBuilder("url: ");
+        template.appendTo(buf, "a b");
+        assertEquals("url: http://foo.com/a%20b", buf.toString());
+
+        StringWriter writer = new StringWriter();
+        template.appendTo(writer, "a b");
+        assertEquals("http://foo.com/a%20b", writer.toString());
+    }
+
+    @Test
+    public void testWriteToByteBuffer() throws CharacterCodingException {
+        UrlTemplate template = UrlTemplate.compile("http://foo.com/{p}?q={q}");
+        String expected = template.expand("\u2603", "a&b");
+
+        ByteBuffer buf = ByteBuffer.allocate(expected.length());
+        template.writeTo(buf, "\u2603", "a&b");
+        assertEquals(expected, new String(buf.array(), US_ASCII));
+
+        ByteBuffer small = ByteBuffer.allocate(expected.length() - 1);
+        try {
+            template.writeTo(small, "\u2603", "a&b");
+            fail();
+        } catch (BufferOverflowException e) {
+            assertEquals(0, small.position());
+        }
+    }
+
+    @Test
+    public void testWrongNumberOfValues() throws CharacterCodingException {
+        try {
+            UrlTemplate.compile("http://foo.com/{a}/{b}").expand("x");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Expected 2 values for <http://foo.com/{a}/{b}> but got 1", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testMalformedTemplates() throws CharacterCodingException {
+        assertMalformed("foo.com/{a}", "Template must start with a scheme and '://': <foo.com/{a}>");
+        assertMalformed("http://{host}/a",
+            "Template must have a host and no variables in the authority: <http://{host}/a>");
+        assertMalformed("http://foo.com:8o/a", "Invalid port in <http://foo.com:8o/a>");
+        assertMalformed("http://foo.com/{a", "Unterminated variable at position 15 in <http://foo.com/{a>");
+        assertMalformed("http://foo.com/{}", "Invalid variable name <> in <http://foo.com/{}>");
+    }
+
+    private static void assertMalformed(String template, String message) throws CharacterCodingException {
+        try {
+            UrlTemplate.compile(template);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+}